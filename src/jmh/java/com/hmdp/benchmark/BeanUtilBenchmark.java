@@ -0,0 +1,72 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import com.hmdp.dto.UserDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 登录用户在redis hash和UserDTO之间的转换
+ *  beanToMap：与UserServiceImpl登录时的写法一致
+ *  fillBeanWithMap：与LoginInterceptor、RefreshTokenInterceptor的写法一致
+ *  baseline：手写的转换
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class BeanUtilBenchmark {
+
+    private UserDTO userDTO;
+
+    private Map<Object, Object> userMap;
+
+    @Setup
+    public void setup() {
+        userDTO = new UserDTO();
+        userDTO.setId(1010L);
+        userDTO.setNickName("user_0fpbzl1x4n");
+        userDTO.setIcon("/imgs/icons/user5-icon.png");
+        userMap = new HashMap<>(beanToMap());
+    }
+
+    @Benchmark
+    public Map<String, Object> beanToMap() {
+        return BeanUtil.beanToMap(userDTO, new HashMap<>(),
+                CopyOptions.create()
+                        .setIgnoreNullValue(true)
+                        .setFieldValueEditor((fieldName, fieldValue) -> fieldValue.toString()));
+    }
+
+    @Benchmark
+    public UserDTO fillBeanWithMap() {
+        return BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+    }
+
+    @Benchmark
+    public Map<String, Object> baselineToMap() {
+        Map<String, Object> map = new HashMap<>(4);
+        map.put("id", userDTO.getId().toString());
+        map.put("nickName", userDTO.getNickName());
+        map.put("icon", userDTO.getIcon());
+        return map;
+    }
+
+    @Benchmark
+    public UserDTO baselineFromMap() {
+        UserDTO user = new UserDTO();
+        user.setId(Long.valueOf((String) userMap.get("id")));
+        user.setNickName((String) userMap.get("nickName"));
+        user.setIcon((String) userMap.get("icon"));
+        return user;
+    }
+}
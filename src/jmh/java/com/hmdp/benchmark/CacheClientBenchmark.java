@@ -0,0 +1,120 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * CacheClient 命中缓存时的解码开销，redis换成mock，直接返回编码好的字节
+ *  passThrough：字节 -> Shop
+ *  logicalExpire：过期时间 + 字节 -> Shop
+ *  logicalExpireNear：命中本地缓存
+ *  baseline：单独的编码、解码，以及原来的JSON序列化、反序列化作为对比
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class CacheClientBenchmark {
+
+    private CacheClient cacheClient;
+
+    private CacheClient nearCacheClient;
+
+    private Shop shop;
+
+    private String shopJson;
+
+    private CacheCodec codec;
+
+    private byte[] shopBytes;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        shop = Benchmarks.shop();
+        shopJson = JSONUtil.toJsonStr(shop);
+        codec = new BinaryCacheCodec(new CacheProperties());
+        shopBytes = codec.encode(shop);
+        long expireAt = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        byte[] logicalBytes = ByteBuffer.allocate(8 + shopBytes.length).putLong(expireAt).put(shopBytes).array();
+
+        ValueOperations<String, byte[]> ops = mock(ValueOperations.class, withSettings().stubOnly());
+        when(ops.get(anyString())).thenAnswer(inv ->
+                inv.getArgument(0, String.class).startsWith("logical:") ? logicalBytes : shopBytes);
+        RedisTemplate<String, byte[]> cacheRedisTemplate = mock(RedisTemplate.class, withSettings().stubOnly());
+        when(cacheRedisTemplate.opsForValue()).thenReturn(ops);
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class, withSettings().stubOnly());
+        //只测redis命中后的解码，关闭本地缓存
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setNearEnabled(false);
+        cacheProperties.setBloomEnabled(false);
+        cacheClient = new CacheClient(redisTemplate, cacheRedisTemplate, codec, cacheProperties,
+                new SimpleMeterRegistry());
+        CacheProperties nearProperties = new CacheProperties();
+        nearProperties.setBloomEnabled(false);
+        nearCacheClient = new CacheClient(redisTemplate, cacheRedisTemplate, codec, nearProperties,
+                new SimpleMeterRegistry());
+    }
+
+    @Benchmark
+    public Shop passThrough() {
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, id -> null,
+                30L, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public Shop logicalExpire() {
+        return cacheClient.queryWithLogicalExpire("logical:" + CACHE_SHOP_KEY, 1L, Shop.class, LOCK_SHOP_KEY,
+                id -> null, 30L, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public Shop logicalExpireNear() {
+        return nearCacheClient.queryWithLogicalExpire("logical:" + CACHE_SHOP_KEY, 1L, Shop.class, LOCK_SHOP_KEY,
+                id -> null, 30L, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public byte[] baselineEncode() {
+        return codec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop baselineDecode() {
+        return codec.decode(shopBytes, Shop.class);
+    }
+
+    @Benchmark
+    public String baselineToJson() {
+        return JSONUtil.toJsonStr(shop);
+    }
+
+    @Benchmark
+    public Shop baselineToBean() {
+        return JSONUtil.toBean(shopJson, Shop.class);
+    }
+}
@@ -0,0 +1,85 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.config.IdProperties;
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * RedisIdWorker.nextId 的本地开销：时间戳、日期字符串、号段发号
+ *  redis换成mock的计数器（stubOnly，不记录调用），号段模式下只有号段用完时才会访问
+ *  baseline：每次都格式化日期并拼接key（号段模式之前的写法）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class RedisIdWorkerBenchmark {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    private RedisIdWorker segmentWorker;
+
+    private RedisIdWorker counterWorker;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        //mock INCR / INCRBY
+        AtomicLong counter = new AtomicLong();
+        ValueOperations<String, String> ops = mock(ValueOperations.class, withSettings().stubOnly());
+        when(ops.increment(anyString())).thenAnswer(inv -> counter.incrementAndGet());
+        when(ops.increment(anyString(), anyLong())).thenAnswer(inv -> counter.addAndGet(inv.getArgument(1)));
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class, withSettings().stubOnly());
+        when(redisTemplate.opsForValue()).thenReturn(ops);
+
+        segmentWorker = newWorker(redisTemplate, true);
+        counterWorker = newWorker(redisTemplate, false);
+    }
+
+    private static RedisIdWorker newWorker(StringRedisTemplate redisTemplate, boolean segmentEnabled) {
+        IdProperties idProperties = new IdProperties();
+        idProperties.setSegmentEnabled(segmentEnabled);
+        RedisIdWorker worker = new RedisIdWorker();
+        ReflectionTestUtils.setField(worker, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(worker, "idProperties", idProperties);
+        return worker;
+    }
+
+    @Benchmark
+    public long segment() {
+        return segmentWorker.nextId("order");
+    }
+
+    @Benchmark
+    public long counter() {
+        return counterWorker.nextId("order");
+    }
+
+    @Benchmark
+    public String baselineFormatKey() {
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        return "icr:order:" + date + timeStamp;
+    }
+}
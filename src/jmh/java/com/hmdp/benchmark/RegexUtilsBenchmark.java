@@ -0,0 +1,39 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.RegexPatterns;
+import com.hmdp.utils.RegexUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 手机号校验
+ *  baseline：预编译的Pattern，RegexUtils每次调用String.matches都会重新编译正则
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class RegexUtilsBenchmark {
+
+    private static final Pattern PHONE_PATTERN = Pattern.compile(RegexPatterns.PHONE_REGEX);
+
+    @Param({"13686869696", "1368686969a"})
+    public String phone;
+
+    @Benchmark
+    public boolean isPhoneInvalid() {
+        return RegexUtils.isPhoneInvalid(phone);
+    }
+
+    @Benchmark
+    public boolean baselinePrecompiled() {
+        return !PHONE_PATTERN.matcher(phone).matches();
+    }
+}
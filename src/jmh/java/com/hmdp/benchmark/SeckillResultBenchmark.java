@@ -0,0 +1,60 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * seckill.lua产生的数据在消费端的解析
+ *  streamRecord：订单消息 XADD stream.orders * userId .. voucherId .. id .. -> VoucherOrder，与订单消费者的写法一致
+ *  timeoutEntry：超时队列中的 订单id:优惠券id:用户id
+ *  baseline：手写的消息解析
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class SeckillResultBenchmark {
+
+    private Map<Object, Object> record;
+
+    private String timeoutEntry;
+
+    @Setup
+    public void setup() {
+        record = new HashMap<>(4);
+        record.put("userId", "1010");
+        record.put("voucherId", "12");
+        record.put("id", "336350617378275329");
+        timeoutEntry = "336350617378275329:12:1010";
+    }
+
+    @Benchmark
+    public VoucherOrder streamRecord() {
+        return BeanUtil.fillBeanWithMap(record, new VoucherOrder(), true);
+    }
+
+    @Benchmark
+    public VoucherOrder baselineStreamRecord() {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(Long.parseLong((String) record.get("id")));
+        voucherOrder.setUserId(Long.parseLong((String) record.get("userId")));
+        voucherOrder.setVoucherId(Long.parseLong((String) record.get("voucherId")));
+        return voucherOrder;
+    }
+
+    @Benchmark
+    public long timeoutEntry() {
+        String[] parts = timeoutEntry.split(":");
+        return Long.parseLong(parts[0]) ^ Long.parseLong(parts[1]) ^ Long.parseLong(parts[2]);
+    }
+}
@@ -0,0 +1,22 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 运维接口配置 hmdp.admin.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.admin")
+public class AdminProperties {
+
+    /**
+     * 允许调用运维接口 /admin/** 的用户id，为空时任何人都不能调用
+     */
+    private List<Long> userIds = new ArrayList<>();
+}
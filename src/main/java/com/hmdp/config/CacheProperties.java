@@ -0,0 +1,71 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 缓存相关配置 hmdp.cache.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 是否开启本地缓存（L1），在redis之前缓存反序列化好的对象
+     */
+    private boolean nearEnabled = true;
+
+    /**
+     * 本地缓存的容量上限，按缓存值的序列化长度（字节）计算
+     */
+    private long nearMaxWeight = 64 * 1024 * 1024;
+
+    /**
+     * 本地缓存的有效期，失效广播丢失时最多脏这么久
+     */
+    private Duration nearTtl = Duration.ofMinutes(1);
+
+    /**
+     * 缓存回源的最长等待时间，包括等待其他实例重建完成的通知
+     */
+    private Duration loadTimeout = Duration.ofSeconds(3);
+
+    /**
+     * 等待重建的重试、降级查询数据库使用的线程数
+     */
+    private int loadThreads = 8;
+
+    /**
+     * 重试任务的队列长度，满了之后等待的请求直接失败
+     */
+    private int loadQueueSize = 1000;
+
+    /**
+     * 是否开启实体id的布隆过滤器，一定不存在的id直接返回，不访问redis和数据库
+     */
+    private boolean bloomEnabled = true;
+
+    /**
+     * 每种实体预计的id数量，与误判率一起决定位图大小
+     */
+    private long bloomExpectedInsertions = 1000000;
+
+    /**
+     * 误判率，误判的id仍然由缓存空值兜底
+     */
+    private double bloomFpp = 0.01;
+
+    /**
+     * 从redis合并位图到本地的间隔，弥补丢失的新增广播；同时检查位图是否被淘汰，补扫数据库中新增的id
+     */
+    private Duration bloomSyncInterval = Duration.ofMinutes(5);
+
+    /**
+     * 缓存值编码后超过该字节数时用LZ4压缩，0表示不压缩
+     */
+    private int codecCompressThreshold = 1024;
+}
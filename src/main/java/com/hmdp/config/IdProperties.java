@@ -0,0 +1,61 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 全局唯一id相关配置 hmdp.id.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id")
+public class IdProperties {
+
+    /**
+     * id生成方式：redis（默认，序列号来自redis计数器）、snowflake（本地生成）
+     */
+    private String mode = "redis";
+
+    /**
+     * 是否开启号段模式：一次INCRBY预留一段序列号，在内存中发号
+     */
+    private boolean segmentEnabled = true;
+
+    /**
+     * 初始号段长度
+     */
+    private int segmentStep = 1000;
+
+    /**
+     * 号段长度的下限
+     */
+    private int segmentMinStep = 100;
+
+    /**
+     * 号段长度的上限
+     */
+    private int segmentMaxStep = 100000;
+
+    /**
+     * 期望一个号段的使用时长，用得比这快号段长度翻倍，慢两倍以上减半
+     */
+    private Duration segmentDuration = Duration.ofMinutes(1);
+
+    /**
+     * 当前号段用到该比例时，后台预取下一个号段
+     */
+    private double segmentPrefetchRatio = 0.8;
+
+    /**
+     * snowflake模式下worker id的租约有效期，每1/3有效期心跳续约一次
+     */
+    private Duration workerLeaseTtl = Duration.ofSeconds(30);
+
+    /**
+     * snowflake模式下容忍的时钟回拨（以及借用未来秒数）的上限，超过后等待时钟追上
+     */
+    private Duration maxRollback = Duration.ofSeconds(5);
+}
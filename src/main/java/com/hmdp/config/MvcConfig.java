@@ -1,6 +1,9 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RateLimiter;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
@@ -16,6 +19,15 @@ public class MvcConfig implements WebMvcConfigurer {
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private RateLimiter rateLimiter;
+
+    @Autowired
+    private RateLimitProperties rateLimitProperties;
+
+    @Autowired
+    private AdminProperties adminProperties;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登录拦截器
@@ -32,5 +44,12 @@ public class MvcConfig implements WebMvcConfigurer {
                 ).order(1);
         //刷新拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(redisTemplate)).addPathPatterns("/**").order(0);
+        //秒杀限流拦截器，在刷新拦截器之后执行，按校验过的登录用户限流
+        if (rateLimitProperties.isEnabled()) {
+            registry.addInterceptor(new RateLimitInterceptor(rateLimiter, rateLimitProperties))
+                    .addPathPatterns("/voucher-order/seckill/*").order(2);
+        }
+        //运维接口拦截器，只允许管理员调用
+        registry.addInterceptor(new AdminInterceptor(adminProperties)).addPathPatterns("/admin/**").order(3);
     }
 }
@@ -0,0 +1,77 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 秒杀接口限流配置 hmdp.rate-limit.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.rate-limit")
+public class RateLimitProperties {
+
+    /**
+     * 是否开启限流
+     */
+    private boolean enabled = true;
+
+    /**
+     * 每个用户（按登录用户id区分）
+     */
+    private Rule user = new Rule(2, 5, 10, Duration.ofSeconds(1));
+
+    /**
+     * 每个IP
+     */
+    private Rule ip = new Rule(20, 50, 100, Duration.ofSeconds(1));
+
+    /**
+     * 每个优惠券
+     */
+    private Rule voucher = new Rule(2000, 2000, 10000, Duration.ofSeconds(1));
+
+    /**
+     * 可信的反向代理地址（不支持网段），只有请求来自这些地址时才使用X-Forwarded-For中的客户端IP
+     */
+    private List<String> trustedProxies = new ArrayList<>();
+
+    @Data
+    public static class Rule {
+
+        /**
+         * 本实例令牌桶每秒生成的令牌数，0表示不做本地限流
+         */
+        private double localRate;
+
+        /**
+         * 本实例令牌桶容量，允许的突发请求数
+         */
+        private int localBurst;
+
+        /**
+         * 集群内一个窗口允许的请求数，0表示不做集群限流
+         */
+        private int clusterLimit;
+
+        /**
+         * 集群限流的滑动窗口长度
+         */
+        private Duration window;
+
+        public Rule() {
+        }
+
+        public Rule(double localRate, int localBurst, int clusterLimit, Duration window) {
+            this.localRate = localRate;
+            this.localBurst = localBurst;
+            this.clusterLimit = clusterLimit;
+            this.window = window;
+        }
+    }
+}
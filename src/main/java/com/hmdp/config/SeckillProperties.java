@@ -0,0 +1,223 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 秒杀下单相关配置 hmdp.seckill.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 订单消息队列
+     */
+    private String streamKey = "stream.orders";
+
+    /**
+     * 消费者组
+     */
+    private String group = "g1";
+
+    /**
+     * 订单队列分区数，按voucherId取模分区；只在redis中还没有分区数时写入，
+     * 之后以redis为准，调整分区数需要调用 PUT /admin/seckill/partitions
+     */
+    private int partitions = 1;
+
+    /**
+     * 消费线程心跳、重新分配分区的间隔
+     */
+    private Duration partitionRefresh = Duration.ofSeconds(5);
+
+    /**
+     * 每个实例的消费线程数，每个线程是消费者组中独立的消费者
+     */
+    private int consumerWorkers = 4;
+
+    /**
+     * 实例标识，消费者名称为 实例标识-序号；为空时使用 主机名:进程号
+     */
+    private String instanceId;
+
+    /**
+     * 是否开启批量消费：一次XREADGROUP拉取多条，一个事务内批量落库
+     */
+    private boolean batchEnabled = true;
+
+    /**
+     * 每批最多拉取的订单数
+     */
+    private int batchSize = 100;
+
+    /**
+     * 拿到第一条消息后，凑批最长等待时间
+     */
+    private Duration batchLinger = Duration.ofMillis(50);
+
+    /**
+     * 幂等落库：依靠 tb_voucher_order 唯一索引 uk_voucher_user(voucher_id, user_id, cancel_id) 保证一人一单
+     * （未取消的订单cancel_id为0，取消后为订单id，已取消的订单不占用一人一单），
+     * 消费时不再加用户锁、不再查询订单是否存在，唯一索引冲突时同一个订单已经落库才算成功
+     */
+    private boolean idempotentInsert = true;
+
+    /**
+     * 数据库库存延迟扣减：订单落库后在内存中累计扣减数，定时合并成每个优惠券一条UPDATE
+     */
+    private boolean stockWriteBehind = true;
+
+    /**
+     * 延迟扣减的刷新间隔
+     */
+    private Duration stockFlushInterval = Duration.ofMillis(200);
+
+    /**
+     * 累计扣减达到该单数时提前刷新
+     */
+    private int stockFlushOrders = 500;
+
+    /**
+     * 库存对账的执行间隔
+     */
+    private Duration reconcileInterval = Duration.ofMinutes(1);
+
+    /**
+     * 对账的秒杀券范围：未结束以及结束不超过该时间的秒杀券
+     */
+    private Duration reconcileWindow = Duration.ofDays(1);
+
+    /**
+     * 是否开启超时未支付订单自动取消；还没有支付流程时订单不会变成已支付，开启后所有订单都会被取消，
+     * 接入支付之后再开启
+     */
+    private boolean orderTimeoutEnabled = false;
+
+    /**
+     * 下单后超过该时间未支付则取消订单，归还库存
+     */
+    private Duration orderTimeout = Duration.ofMinutes(15);
+
+    /**
+     * 每次从时间格中取出的订单数
+     */
+    private int orderTimeoutBatch = 500;
+
+    /**
+     * 订单还没落库或者取消失败时的重试间隔
+     */
+    private Duration orderTimeoutRetry = Duration.ofSeconds(10);
+
+    /**
+     * 取消订单的最大重试次数
+     */
+    private int orderTimeoutMaxRetries = 30;
+
+    /**
+     * 订单结果查询的最长等待时间，超时返回PENDING
+     */
+    private Duration orderStatusWait = Duration.ofSeconds(30);
+
+    /**
+     * 订单状态的保留时间
+     */
+    private Duration orderStatusTtl = Duration.ofMinutes(30);
+
+    /**
+     * 是否定时裁剪订单队列中已经确认的消息（XTRIM MINID，需要redis 6.2）
+     */
+    private boolean trimEnabled = true;
+
+    /**
+     * 裁剪间隔
+     */
+    private Duration trimInterval = Duration.ofMinutes(1);
+
+    /**
+     * 裁剪之前是否把消息归档到本地gzip文件
+     */
+    private boolean archiveEnabled = false;
+
+    /**
+     * 归档目录，文件名为 分区key-yyyyMMdd.jsonl.gz
+     */
+    private String archiveDir = "archive";
+
+    /**
+     * pending-list恢复任务的执行间隔
+     */
+    private Duration recoveryInterval = Duration.ofSeconds(5);
+
+    /**
+     * 消息空闲超过该时间才会被认领，也是重试退避的基数：第n次投递后需空闲 minIdle * 2^(n-1)
+     */
+    private Duration recoveryMinIdle = Duration.ofSeconds(30);
+
+    /**
+     * 重试退避的上限
+     */
+    private Duration recoveryMaxBackoff = Duration.ofMinutes(10);
+
+    /**
+     * 最大投递次数，超过后转入死信队列
+     */
+    private int recoveryMaxDeliveries = 5;
+
+    /**
+     * 每次扫描的pending消息数
+     */
+    private int recoveryScanSize = 500;
+
+    /**
+     * 死信队列 stream.orders.dlq
+     * compensated=1：转入时已经执行cancel.lua归还了redis库存和购买记录，订单不会再落库，只需要排查原因；
+     * compensated=0：超时订单取消失败后放弃重试，库存还没有归还。先确认 tb_voucher_order 中订单的状态：
+     * 未支付则取消订单并归还数据库库存，然后执行
+     *   redis-cli --eval cancel.lua 库存key 订单key , userId 桶数 购买记录存储方式 1
+     * （key为用户所在的桶，分桶时是 seckill:stock:{voucherId:userId%桶数}、seckill:order:{voucherId:userId%桶数}）
+     * 归还redis库存和购买记录，最后 XDEL 这条死信
+     */
+    public String getDeadLetterKey() {
+        return streamKey + ".dlq";
+    }
+
+    /**
+     * 是否开启节点本地库存租约：每个实例从redis批量租库存，本地原子计数判断是否有库存
+     */
+    private boolean leaseEnabled = false;
+
+    /**
+     * 每次租的库存数
+     */
+    private int leaseChunk = 200;
+
+    /**
+     * 租约有效期，超过有效期还没卖完的库存归还redis，避免库存滞留在某个实例
+     */
+    private Duration leaseTtl = Duration.ofSeconds(30);
+
+    /**
+     * 本地售罄标记的有效期，过期后放一个请求去redis确认，防止错过补库存的广播
+     */
+    private Duration soldOutTtl = Duration.ofSeconds(5);
+
+    /**
+     * 预热任务的执行间隔
+     */
+    private Duration preheatInterval = Duration.ofSeconds(30);
+
+    /**
+     * 提前多久预热：开始时间在该时间之内的秒杀券会被预热
+     */
+    private Duration preheatAhead = Duration.ofMinutes(10);
+
+    /**
+     * 预热时并发PING的次数，提前建立连接池中的连接
+     */
+    private int preheatConnections = 8;
+}
@@ -0,0 +1,75 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.IdBloomFilter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * <p>
+ *  运维接口，需要登录并且是 hmdp.admin.user-ids 中的用户
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Autowired
+    private IVoucherService voucherService;
+
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+
+    @Autowired
+    private IdBloomFilter idBloomFilter;
+
+    /**
+     * 补充秒杀库存
+     * @param voucherId 优惠券id
+     * @param count 补充数量
+     * @return 无
+     */
+    @PutMapping("seckill/stock/{id}")
+    public Result addSeckillStock(@PathVariable("id") Long voucherId, @RequestParam("count") Integer count) {
+        return voucherService.addSeckillStock(voucherId, count);
+    }
+
+    /**
+     * 立即预热秒杀券：加载时间窗口、检查库存、脚本和redis连接
+     * @param voucherId 优惠券id
+     * @return 就绪检查结果
+     */
+    @PostMapping("seckill/preheat/{id}")
+    public Result preheatSeckillVoucher(@PathVariable("id") Long voucherId) {
+        return voucherService.preheatSeckillVoucher(voucherId);
+    }
+
+    /**
+     * 调整订单队列分区数，分区数以redis为准，修改配置不会触发调整
+     * @param count 新的分区数
+     * @return 调整后的分区数，上一次调整还未完成时失败
+     */
+    @PutMapping("seckill/partitions")
+    public Result rebalancePartitions(@RequestParam("count") Integer count) {
+        return voucherOrderService.rebalancePartitions(count);
+    }
+
+    /**
+     * 重新扫描数据库建立布隆过滤器，直接向数据库导入了id较小的实体后调用
+     * @param type 实体类型，如shop
+     * @return 扫描到的最大id
+     */
+    @PutMapping("bloom/{type}")
+    public Result rebuildBloomFilter(@PathVariable("type") String type) {
+        Long lastId = idBloomFilter.rebuild(type);
+        return lastId == null ? Result.fail("布隆过滤器不存在：" + type) : Result.ok(lastId);
+    }
+}
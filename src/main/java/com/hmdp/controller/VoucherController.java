@@ -45,6 +45,16 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 秒杀库存一致性检查：汇总redis中各个桶的库存，与数据库库存对比
+     * @param voucherId 优惠券id
+     * @return 检查结果
+     */
+    @GetMapping("seckill/stock/{id}")
+    public Result checkSeckillStock(@PathVariable("id") Long voucherId) {
+        return voucherService.checkSeckillStock(voucherId);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
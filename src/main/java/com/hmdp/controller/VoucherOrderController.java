@@ -5,10 +5,14 @@ import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
  * <p>
@@ -30,4 +34,22 @@ public class VoucherOrderController {
 
         return IVoucherService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 等待秒杀订单结果（长轮询）：订单落库后返回SUCCESS，处理失败返回失败，等待超时返回PENDING
+     * @param orderId 下单时返回的订单id
+     */
+    @GetMapping("seckill/status/{id}")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId) {
+        return IVoucherService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 订阅秒杀订单结果（SSE），事件名为status，有结果后推送并结束
+     * @param orderId 下单时返回的订单id
+     */
+    @GetMapping(value = "seckill/status/{id}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeOrderStatus(@PathVariable("id") Long orderId) {
+        return IVoucherService.subscribeOrderStatus(orderId);
+    }
 }
@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 发放总量：初始库存 + 补充的库存，用于库存对账
+     */
+    private Integer totalStock;
+
     /**
      * 创建时间
      */
@@ -78,6 +78,18 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 秒杀库存在redis中的分桶数，热点券可以分多个桶分散压力，为空或1表示不分桶
+     */
+    @TableField(exist = false)
+    private Integer stockBuckets;
+
+    /**
+     * 秒杀购买记录在redis中的存储方式：set（默认）、bitmap（用户id稠密时最省内存）、roaring（按块自动选择set或bitmap）
+     */
+    @TableField(exist = false)
+    private String membership;
+
     /**
      * 生效时间
      */
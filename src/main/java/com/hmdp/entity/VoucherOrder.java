@@ -52,6 +52,11 @@ public class VoucherOrder implements Serializable {
      */
     private Integer status;
 
+    /**
+     * 取消标记：未取消为0，取消后为订单id，让唯一索引只约束未取消的订单
+     */
+    private Long cancelId;
+
     /**
      * 下单时间
      */
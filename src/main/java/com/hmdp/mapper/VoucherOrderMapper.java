@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,17 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入订单 INSERT INTO ... VALUES (..),(..)
+     * @param orders 订单列表，不能为空
+     * @return 插入行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 有效订单数（已取消的订单库存已经归还，不计入）
+     * @param voucherId 优惠券id
+     * @return 订单数
+     */
+    long countValidOrders(@Param("voucherId") Long voucherId);
 }
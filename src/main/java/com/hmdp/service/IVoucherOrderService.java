@@ -4,6 +4,11 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +21,15 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    DeferredResult<Result> queryOrderStatus(Long orderId);
+
+    SseEmitter subscribeOrderStatus(Long orderId);
+
+    Result rebalancePartitions(Integer partitions);
+
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    int cancelVoucherOrder(VoucherOrder voucherOrder);
 }
@@ -17,4 +17,10 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    Result addSeckillStock(Long voucherId, Integer count);
+
+    Result checkSeckillStock(Long voucherId);
+
+    Result preheatSeckillVoucher(Long voucherId);
 }
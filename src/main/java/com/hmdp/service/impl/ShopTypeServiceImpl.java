@@ -1,16 +1,17 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheCodec;
 import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.SerializationException;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -27,21 +28,29 @@ import static com.hmdp.utils.RedisConstants.SHOUYE_SHOP_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    @Autowired
+    private CacheCodec cacheCodec;
 
     @Override
     public  List<ShopType> queryList() {
         //1 从redis查询商铺缓存
-        String shopJson = redisTemplate.opsForValue().get(SHOUYE_SHOP_KEY);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(SHOUYE_SHOP_KEY);
 
         //2 判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3 存在，直接返回
-            return JSONUtil.toList(shopJson, ShopType.class);
+        if (bytes != null && bytes.length > 0) {
+            //3 存在，直接返回；旧格式无法解码时重新查询覆盖
+            try {
+                return cacheCodec.decodeList(bytes, ShopType.class);
+            } catch (SerializationException e) {
+                log.warn("商铺类型缓存无法解码，重建：{}", e.getMessage());
+            }
 
         }
 
@@ -52,7 +61,7 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
             return null;
         }
         //6 存在，写入redis
-        redisTemplate.opsForValue().set(RedisConstants.SHOUYE_SHOP_KEY,JSONUtil.toJsonStr(shopTypes), LOGIN_USER_TTL, TimeUnit.SECONDS);
+        cacheRedisTemplate.opsForValue().set(RedisConstants.SHOUYE_SHOP_KEY,cacheCodec.encodeList(shopTypes, ShopType.class), LOGIN_USER_TTL, TimeUnit.SECONDS);
         //7 返回
         return shopTypes;
     }
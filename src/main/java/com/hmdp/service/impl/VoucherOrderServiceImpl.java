@@ -1,35 +1,74 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.OrderStatusNotifier;
+import com.hmdp.utils.OrderTimeoutQueue;
+import com.hmdp.utils.ScriptRegistry;
+import com.hmdp.utils.SeckillPreheater;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.StockBuckets;
+import com.hmdp.utils.StockLeaseManager;
+import com.hmdp.utils.StockWriteBehind;
+import com.hmdp.utils.StreamPartitionManager;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_PARTITIONS_KEY;
 
 /**
  * <p>
@@ -43,12 +82,14 @@ import java.util.concurrent.Executors;
 @Slf4j
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
+    //扫描死信队列时每页的条数
+    private static final int DEAD_LETTER_SCAN_PAGE = 100;
 
     @Autowired
     private ISeckillVoucherService seckillVoucherService;
 
     @Autowired
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
 
     @Autowired
     private StringRedisTemplate redisTemplate;
@@ -56,95 +97,584 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     private RedissonClient redissonClient;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Autowired
+    private ScriptRegistry scriptRegistry;
+
     //阻塞队列：当一个线程尝试从这个队列中获取元素的时候，如果没有元素，这个队列就会被阻塞，直到队列中存在元素
     //队列才会被唤醒。
     private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
 
-    //异步处理线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //异步处理线程池，每个线程都是消费者组中一个独立的消费者
+    private ExecutorService seckillOrderExecutor;
+
+    //pending-list恢复任务
+    private ScheduledExecutorService pendingListExecutor;
+
+    //超时未支付订单的取消任务
+    private ScheduledExecutorService orderTimeoutExecutor;
+
+    //本实例注册的消费者名称，停机时注销
+    private final List<String> consumerNames = new ArrayList<>();
+
+    private volatile boolean running = true;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    @Autowired
+    private StreamPartitionManager partitionManager;
+
+    @Autowired
+    private StockLeaseManager stockLeaseManager;
+
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
+
+    @Autowired
+    private StockWriteBehind stockWriteBehind;
+
+    @Autowired
+    private OrderTimeoutQueue orderTimeoutQueue;
+
+    @Autowired
+    private OrderStatusNotifier orderStatusNotifier;
+
+    @Autowired
+    private SeckillPreheater seckillPreheater;
+
+    @Autowired
+    private StockBuckets stockBuckets;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    //每批落库耗时、每批订单数
+    private Timer batchLatency;
+    private DistributionSummary batchSize;
+    //重试成功、转入死信队列的订单数
+    private Counter recoveredCounter;
+    private Counter deadLetterCounter;
+    //超时取消的订单数
+    private Counter cancelledCounter;
 
     //在类初始化之后执行，因为当这个类初始化好了之后，随时都是有可能要执行的
     @PostConstruct
     private void init() {
-        //SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        batchLatency = Timer.builder("seckill.order.batch.latency")
+                .description("每批订单落库耗时")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        batchSize = DistributionSummary.builder("seckill.order.batch.size")
+                .description("每批订单数")
+                .register(meterRegistry);
+        recoveredCounter = meterRegistry.counter("seckill.order.recovered");
+        deadLetterCounter = meterRegistry.counter("seckill.order.dead.letter");
+        cancelledCounter = meterRegistry.counter("seckill.order.timeout.cancelled");
+
+        //1 启动消费者，名称 = 实例标识-序号，保证集群内每个线程都是不同的消费者
+        //  消费者组由StreamPartitionManager在启动时为每个分区创建
+        int workers = seckillProperties.getConsumerWorkers();
+        seckillOrderExecutor = Executors.newFixedThreadPool(workers,
+                ThreadUtil.newNamedThreadFactory("seckill-order-", false));
+        String instanceId = StrUtil.isNotBlank(seckillProperties.getInstanceId())
+                ? seckillProperties.getInstanceId()
+                : NetUtil.getLocalHostName() + ":" + RuntimeUtil.getPid();
+        for (int i = 0; i < workers; i++) {
+            String consumerName = instanceId + "-" + i;
+            consumerNames.add(consumerName);
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerName));
+        }
+
+        //2 pending-list恢复任务，以独立的消费者身份认领消息
+        String recoveryName = instanceId + "-recovery";
+        consumerNames.add(recoveryName);
+        pendingListExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("seckill-order-recovery-", false));
+        long interval = seckillProperties.getRecoveryInterval().toMillis();
+        pendingListExecutor.scheduleWithFixedDelay(new PendingListHandler(recoveryName),
+                interval, interval, TimeUnit.MILLISECONDS);
+        log.info("订单消费者已启动，group={}, consumers={}", seckillProperties.getGroup(), consumerNames);
+
+        //3 超时未支付订单的取消任务，每秒处理一次到期的时间格
+        if (seckillProperties.isOrderTimeoutEnabled()) {
+            orderTimeoutExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadUtil.newNamedThreadFactory("seckill-order-timeout-", false));
+            orderTimeoutExecutor.scheduleWithFixedDelay(new OrderTimeoutHandler(), 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    //停机时先停止拉取，等待在途批次处理完，再注销消费者
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        if (orderTimeoutExecutor != null) {
+            orderTimeoutExecutor.shutdown();
+        }
+        pendingListExecutor.shutdown();
+        seckillOrderExecutor.shutdown();
+        if (!seckillOrderExecutor.awaitTermination(10, TimeUnit.SECONDS)
+                || !pendingListExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("订单消费者未能在10秒内停止");
+        }
+        String groupName = seckillProperties.getGroup();
+        Set<String> keys = new LinkedHashSet<>(partitionManager.partitionKeys());
+        keys.addAll(partitionManager.retiredKeys());
+        for (String consumerName : consumerNames) {
+            Consumer consumer = Consumer.from(groupName, consumerName);
+            for (String key : keys) {
+                //注意：XGROUP DELCONSUMER会丢弃该消费者的pending消息，还有未确认消息的消费者保留下来，由其他实例认领
+                PendingMessages pending = redisTemplate.opsForStream().pending(key, consumer, Range.unbounded(), 1L);
+                if (pending.isEmpty()) {
+                    redisTemplate.opsForStream().deleteConsumer(key, consumer);
+                } else {
+                    log.warn("消费者{}在{}还有未确认的消息，保留不注销", consumerName, key);
+                }
+            }
+        }
     }
 
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        String groupName = seckillProperties.getGroup();
+        Consumer consumer;
+        //当前线程持有的分区，同一时刻一个分区只会被一个线程消费
+        Set<String> owned = new LinkedHashSet<>();
+        //分区调整期间读到的栅栏之后的消息，等所有旧分区drain完成之后再处理
+        Map<String, List<MapRecord<String, Object, Object>>> held = new HashMap<>();
+        long lastRefresh;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumer = Consumer.from(groupName, consumerName);
+        }
+
         @Override
         public void run() {
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STRAEMS streams. order >
-                    // 由于存在count可能会有多条数据，所以是一个list集合
-                    List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-
-                    );
-
-                    // 2.判断消息获取是否成功
-                    if(list == null || list.isEmpty()){
-                        // 2.1如果获取失败，说明没有消息，继续下一次循环
-                        continue;
+            boolean idle = true;
+            try {
+                while (running) {
+                    try {
+                        // 1.获取分区调整的栅栏，刷新持有的分区
+                        Map<String, RecordId> fences = partitionManager.fences();
+                        refreshPartitions(fences);
+                        if (owned.isEmpty()) {
+                            ThreadUtil.sleep(500);
+                            continue;
+                        }
+                        // 2.依次消费持有的分区，没有消息时把2秒的阻塞时间分摊到每个分区
+                        Duration block = idle ? Duration.ofMillis(Math.max(2000 / owned.size(), 1)) : null;
+                        boolean consumed = false;
+                        for (String key : owned) {
+                            consumed |= consume(key, fences, block);
+                        }
+                        idle = !consumed;
+                    } catch (Exception e) {
+                        // 处理失败的消息留在pending-list中，由PendingListHandler认领重试
+                        log.error("处理订单异常", e);
+                        ThreadUtil.sleep(20);
                     }
+                }
+            } finally {
+                owned.forEach(partitionManager::release);
+                partitionManager.unregister(consumer.getName());
+            }
+        }
+
+        private void refreshPartitions(Map<String, RecordId> fences) {
+            long now = System.currentTimeMillis();
+            if (now - lastRefresh < seckillProperties.getPartitionRefresh().toMillis()) {
+                return;
+            }
+            lastRefresh = now;
+            // 还有暂存消息的分区不能释放
+            partitionManager.refreshOwnership(consumer.getName(), owned, held.keySet(),
+                    partitionManager.consumingKeys(fences));
+        }
+
+        // 消费一个分区，返回是否读到了消息
+        private boolean consume(String key, Map<String, RecordId> fences, Duration block) {
+            if (!fences.isEmpty()) {
+                return drain(key, fences.get(key), block);
+            }
+            // 分区调整已经结束，先处理暂存的消息
+            List<MapRecord<String, Object, Object>> records = held.remove(key);
+            if (records != null && !records.isEmpty()) {
+                handleRecords(key, records);
+                return true;
+            }
+            // XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders:n >
+            records = readBatch(key, block);
+            if (records.isEmpty()) {
+                return false;
+            }
+            handleRecords(key, records);
+            return true;
+        }
+
+        // 分区调整期间只消费旧分区中栅栏之前的消息，栅栏之后的消息暂存
+        private boolean drain(String key, RecordId fence, Duration block) {
+            // 新分区，等待调整结束
+            if (fence == null) {
+                return false;
+            }
+            boolean consumed = false;
+            if (!held.containsKey(key)) {
+                List<MapRecord<String, Object, Object>> records = readBatch(key, block);
+                List<MapRecord<String, Object, Object>> before = new ArrayList<>();
+                List<MapRecord<String, Object, Object>> after = new ArrayList<>();
+                for (MapRecord<String, Object, Object> record : records) {
+                    (StreamPartitionManager.compare(record.getId(), fence) <= 0 ? before : after).add(record);
+                }
+                if (!before.isEmpty()) {
+                    handleRecords(key, before);
+                }
+                // 读到了栅栏之前的消息，还没有投递完
+                if (!records.isEmpty() && after.isEmpty()) {
+                    return true;
+                }
+                // 读不到新消息或者读到了栅栏之后的消息，说明栅栏之前的消息都已经投递
+                held.put(key, after);
+                consumed = !records.isEmpty();
+            }
+            // 栅栏之前处理失败的消息还在pending-list中，由PendingListHandler重试，确认之后才算drain完成
+            if (!partitionManager.hasPendingBefore(key, fence)) {
+                partitionManager.markDrained(key);
+            }
+            return consumed;
+        }
 
-                    // 解析消息中的订单
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
+        private void handleRecords(String key, List<MapRecord<String, Object, Object>> records) {
+            if (!seckillProperties.isBatchEnabled()) {
+                for (MapRecord<String, Object, Object> record : records) {
+                    // 解析消息中的订单，下单
+                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                    boolean saved = handleVoucherOrder(voucherOrder);
+                    // ACK确认 XACK stream.orders g1 id
+                    redisTemplate.opsForStream().acknowledge(key, groupName, record.getId());
+                    // 订单落库（或者已经落库）才通知成功，重复下单、库存不足没有落库，通知失败
+                    if (saved) {
+                        orderStatusNotifier.success(Collections.singletonList(voucherOrder));
+                    } else {
+                        orderStatusNotifier.failed(Collections.singletonList(voucherOrder));
+                    }
+                }
+                return;
+            }
+            long begin = System.nanoTime();
+            // 1.解析订单
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            }
+            // 2.一个事务内批量落库
+            try {
+                proxy.createVoucherOrders(voucherOrders);
+            } catch (Exception e) {
+                // 整批已回滚，逐条重试找出有问题的消息，其余订单不受影响
+                log.error("批量处理订单异常，逐条重试", e);
+                handleOneByOne(key, records, voucherOrders);
+                return;
+            }
+            // 3.整批ACK XACK stream.orders g1 id1 id2 ...
+            RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+            redisTemplate.opsForStream().acknowledge(key, groupName, ids);
+            // 4.通知等待下单结果的请求
+            orderStatusNotifier.success(voucherOrders);
 
-                    // 4.ACK确认 SACK stream.orders g1 id
-                    redisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+            batchLatency.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+            batchSize.record(records.size());
+        }
 
+        private void handleOneByOne(String key, List<MapRecord<String, Object, Object>> records,
+                                    List<VoucherOrder> voucherOrders) {
+            for (int i = 0; i < records.size(); i++) {
+                RecordId id = records.get(i).getId();
+                try {
+                    proxy.createVoucherOrders(Collections.singletonList(voucherOrders.get(i)));
+                    redisTemplate.opsForStream().acknowledge(key, groupName, id);
+                    orderStatusNotifier.success(Collections.singletonList(voucherOrders.get(i)));
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlePendingList();
+                    // 失败的消息留在pending-list中，由PendingListHandler认领重试
+                    log.error("处理订单异常，id={}", id, e);
                 }
             }
         }
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                    List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create("stream.orders", ReadOffset.from("0"))
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有异常消息，结束循环
+
+        // 第一次最多阻塞block等待消息，拿到消息后最多再等待linger时间，直到凑满batchSize
+        private List<MapRecord<String, Object, Object>> readBatch(String key, Duration block) {
+            int size = seckillProperties.isBatchEnabled() ? seckillProperties.getBatchSize() : 1;
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>(size);
+            long deadline = 0;
+            while (records.size() < size) {
+                StreamReadOptions options = StreamReadOptions.empty().count(size - records.size());
+                if (!records.isEmpty()) {
+                    long remain = deadline - System.currentTimeMillis();
+                    // 注意：BLOCK 0 表示永久阻塞，剩余时间不足1ms直接结束凑批
+                    if (remain < 1) {
                         break;
                     }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    redisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pendding-list订单异常", e);
+                    options = options.block(Duration.ofMillis(remain));
+                } else if (block != null) {
+                    options = options.block(block);
+                }
+                List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(
+                        consumer, options, StreamOffset.create(key, ReadOffset.lastConsumed()));
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                if (records.isEmpty()) {
+                    deadline = System.currentTimeMillis() + seckillProperties.getBatchLinger().toMillis();
+                }
+                records.addAll(list);
+            }
+            return records;
+        }
+    }
+
+    // pending-list恢复：认领任意消费者（包括已下线的实例）空闲超过阈值的消息，
+    // 按投递次数指数退避重试，超过重试次数后转入死信队列 stream.orders.dlq
+    private class PendingListHandler implements Runnable {
+        String groupName = seckillProperties.getGroup();
+        Consumer consumer;
+
+        PendingListHandler(String consumerName) {
+            this.consumer = Consumer.from(groupName, consumerName);
+        }
+
+        @Override
+        public void run() {
+            // 分区调整期间只重试旧分区栅栏之前的消息，drain要等它们确认；
+            // 栅栏之后的消息暂存在消费线程中，不能认领，避免打乱同一个优惠券订单的顺序
+            Map<String, RecordId> fences = partitionManager.fences();
+            if (!fences.isEmpty()) {
+                fences.forEach((key, fence) -> {
                     try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
+                        handlePendingList(key, Range.leftUnbounded(Range.Bound.inclusive(fence.getValue())));
+                    } catch (Exception e) {
+                        log.error("处理pending-list订单异常", e);
+                    }
+                });
+                return;
+            }
+            for (String key : partitionManager.partitionKeys()) {
+                try {
+                    handlePendingList(key, Range.unbounded());
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                }
+            }
+            // 退役的旧分区处理完之后删除
+            for (String key : partitionManager.retiredKeys()) {
+                try {
+                    handlePendingList(key, Range.unbounded());
+                    PendingMessagesSummary summary = redisTemplate.opsForStream().pending(key, groupName);
+                    if (summary == null || summary.getTotalPendingMessages() == 0) {
+                        partitionManager.removeRetired(key);
                     }
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                }
+            }
+        }
+
+        private void handlePendingList(String queueName, Range<String> range) {
+            // 1.获取整个消费者组最早的一批pending消息 XPENDING stream.orders g1 - + count
+            PendingMessages pendingMessages = redisTemplate.opsForStream().pending(
+                    queueName, groupName, range, seckillProperties.getRecoveryScanSize());
+            for (PendingMessage pending : pendingMessages) {
+                if (!running) {
+                    return;
+                }
+                // 2.空闲时间未超过退避时间的跳过：可能还在被正常消费，或者还没到下一次重试时间
+                long deliveries = pending.getTotalDeliveryCount();
+                Duration minIdle = backoff(deliveries);
+                if (pending.getElapsedTimeSinceLastDelivery().compareTo(minIdle) < 0) {
+                    continue;
+                }
+                // 3.认领消息 XCLAIM stream.orders g1 recovery minIdle id，会使投递次数+1
+                //   带上minIdle，多个实例同时认领同一条消息时只有一个能成功
+                List<ByteRecord> claimed = redisTemplate.execute((RedisCallback<List<ByteRecord>>) connection -> connection.xClaim(
+                        queueName.getBytes(StandardCharsets.UTF_8), groupName, consumer.getName(),
+                        RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(pending.getId())));
+                if (claimed == null || claimed.isEmpty()) {
+                    continue;
+                }
+                handleRecord(queueName, claimed.get(0).deserialize(StringRedisSerializer.UTF_8), deliveries + 1);
+            }
+        }
 
+        private void handleRecord(String queueName, MapRecord<String, String, String> record, long deliveries) {
+            try {
+                // 4.重新下单，createVoucherOrders会过滤掉已落库的订单，可以安全重试
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                proxy.createVoucherOrders(Collections.singletonList(voucherOrder));
+                redisTemplate.opsForStream().acknowledge(queueName, groupName, record.getId());
+                orderStatusNotifier.success(Collections.singletonList(voucherOrder));
+                recoveredCounter.increment();
+            } catch (Exception e) {
+                log.error("重试订单失败，id={}, 投递次数={}", record.getId(), deliveries, e);
+                if (deliveries >= seckillProperties.getRecoveryMaxDeliveries()) {
+                    // 5.超过重试次数，转入死信队列并确认，避免pending-list无限增长
+                    deadLetter(queueName, record, deliveries, e);
                 }
             }
         }
+
+        private void deadLetter(String queueName, MapRecord<String, String, String> record, long deliveries, Exception cause) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            // 5.1 订单其实已经落库（例如落库之后确认失败），不需要补偿，直接确认
+            if (getById(voucherOrder.getId()) != null) {
+                redisTemplate.opsForStream().acknowledge(queueName, groupName, record.getId());
+                orderStatusNotifier.success(Collections.singletonList(voucherOrder));
+                return;
+            }
+            // 5.2 先归还redis库存和一人一单的购买记录，用户可以重新下单；
+            //     补偿失败时抛出异常、不确认，下一轮恢复时再试
+            stockBuckets.cancel(voucherOrder.getVoucherId(), voucherOrder.getUserId(), true);
+            soldOutRegistry.reset(voucherOrder.getVoucherId());
+
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("originStream", queueName);
+            value.put("originId", record.getId().getValue());
+            value.put("deliveries", String.valueOf(deliveries));
+            value.put("cause", StrUtil.maxLength(ExceptionUtil.getRootCauseMessage(cause), 1000));
+            value.put("compensated", "1");
+            // XADD stream.orders.dlq * ... ；XACK stream.orders g1 id
+            redisTemplate.opsForStream().add(seckillProperties.getDeadLetterKey(), value);
+            redisTemplate.opsForStream().acknowledge(queueName, groupName, record.getId());
+            deadLetterCounter.increment();
+            log.error("订单转入死信队列，已归还库存，id={}, value={}", record.getId(), value);
+            orderStatusNotifier.failed(Collections.singletonList(voucherOrder));
+        }
+
+        // 退避时间 = minIdle * 2^(投递次数-1)，不超过maxBackoff
+        private Duration backoff(long deliveries) {
+            Duration minIdle = seckillProperties.getRecoveryMinIdle();
+            Duration maxBackoff = seckillProperties.getRecoveryMaxBackoff();
+            int shift = (int) Math.min(Math.max(deliveries - 1, 0), 20);
+            Duration backoff = minIdle.multipliedBy(1L << shift);
+            return backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff;
+        }
+    }
+
+    // 超时未支付订单取消：从游标开始依次处理到期的时间格，每格分批取出
+    // 取消成功后归还数据库和redis库存，并把用户从订单集合中移除
+    private class OrderTimeoutHandler implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                long now = orderTimeoutQueue.currentSecond();
+                for (long second = orderTimeoutQueue.cursor() + 1; second <= now && running; second++) {
+                    List<String> items;
+                    do {
+                        items = orderTimeoutQueue.pop(second, seckillProperties.getOrderTimeoutBatch());
+                        items.forEach(this::handleTimeout);
+                    } while (items.size() == seckillProperties.getOrderTimeoutBatch());
+                    orderTimeoutQueue.advance(second);
+                }
+            } catch (Exception e) {
+                log.error("处理超时订单异常", e);
+            }
+        }
+
+        // item格式：订单id:优惠券id:用户id[:重试次数]
+        private void handleTimeout(String item) {
+            String[] parts = item.split(":");
+            VoucherOrder voucherOrder = new VoucherOrder()
+                    .setId(Long.valueOf(parts[0]))
+                    .setVoucherId(Long.valueOf(parts[1]))
+                    .setUserId(Long.valueOf(parts[2]));
+            int retries = parts.length > 3 ? Integer.parseInt(parts[3]) : 0;
+            try {
+                // 1.数据库中取消订单并归还库存
+                int r = proxy.cancelVoucherOrder(voucherOrder);
+                if (r == 1) {
+                    // 已支付或者已取消
+                    return;
+                }
+                if (r == 2) {
+                    // 订单还在消息队列中没有落库，稍后重试
+                    retry(voucherOrder, retries, null);
+                    return;
+                }
+                // 2.归还redis库存，用户可以再次下单
+                stockBuckets.cancel(voucherOrder.getVoucherId(), voucherOrder.getUserId(), true);
+                soldOutRegistry.reset(voucherOrder.getVoucherId());
+                cancelledCounter.increment();
+                log.debug("超时订单已取消，id={}", voucherOrder.getId());
+            } catch (Exception e) {
+                retry(voucherOrder, retries, e);
+            }
+        }
+
+        private void retry(VoucherOrder voucherOrder, int retries, Exception cause) {
+            if (retries >= seckillProperties.getOrderTimeoutMaxRetries()) {
+                log.error("超时订单取消失败，放弃重试，id={}", voucherOrder.getId(), cause);
+                owedCompensation(voucherOrder, cause);
+                return;
+            }
+            if (cause != null) {
+                log.warn("超时订单取消失败，稍后重试，id={}", voucherOrder.getId(), cause);
+            }
+            orderTimeoutQueue.schedule(voucherOrder.getId() + ":" + voucherOrder.getVoucherId() + ":"
+                    + voucherOrder.getUserId() + ":" + (retries + 1),
+                    seckillProperties.getOrderTimeoutRetry().getSeconds());
+        }
+    }
+
+    // 超时订单放弃取消：写入死信队列，compensated=0 表示库存还没有归还，由运维按 SeckillProperties.getDeadLetterKey 的说明处理
+    // 注意：订单一直没有落库时，恢复线程可能已经把它转入死信队列并归还了库存（compensated=1），
+    //      这时不能再写一条compensated=0，否则运维会再归还一次库存
+    private void owedCompensation(VoucherOrder voucherOrder, Exception cause) {
+        try {
+            if (compensatedInDeadLetter(voucherOrder.getId())) {
+                log.warn("订单已在死信队列中归还过库存，不再写入，id={}", voucherOrder.getId());
+                return;
+            }
+        } catch (Exception e) {
+            log.error("查询死信队列失败，没有写入，需要人工确认是否归还库存，id={}, voucherId={}, userId={}",
+                    voucherOrder.getId(), voucherOrder.getVoucherId(), voucherOrder.getUserId(), e);
+            return;
+        }
+        Map<Object, Object> value = new HashMap<>();
+        value.put("id", voucherOrder.getId().toString());
+        value.put("voucherId", voucherOrder.getVoucherId().toString());
+        value.put("userId", voucherOrder.getUserId().toString());
+        value.put("originStream", "order-timeout");
+        value.put("cause", cause == null ? "订单一直没有落库" : StrUtil.maxLength(ExceptionUtil.getRootCauseMessage(cause), 1000));
+        value.put("compensated", "0");
+        try {
+            redisTemplate.opsForStream().add(seckillProperties.getDeadLetterKey(), value);
+            deadLetterCounter.increment();
+        } catch (Exception e) {
+            log.error("写入死信队列失败，value={}", value, e);
+        }
+    }
+
+    // 死信队列中是否有这个订单已经归还库存的记录，从新到旧分页扫描
+    // XREVRANGE stream.orders.dlq + - COUNT n，下一页从上一页最后一条开始（包含它，跳过）
+    private boolean compensatedInDeadLetter(Long orderId) {
+        String id = orderId.toString();
+        String last = null;
+        while (true) {
+            Range<String> range = last == null ? Range.unbounded() : Range.leftUnbounded(Range.Bound.inclusive(last));
+            List<MapRecord<String, Object, Object>> records = redisTemplate.opsForStream().reverseRange(
+                    seckillProperties.getDeadLetterKey(), range, RedisZSetCommands.Limit.limit().count(DEAD_LETTER_SCAN_PAGE));
+            boolean advanced = false;
+            for (MapRecord<String, Object, Object> record : records == null
+                    ? Collections.<MapRecord<String, Object, Object>>emptyList() : records) {
+                if (record.getId().getValue().equals(last)) {
+                    continue;
+                }
+                advanced = true;
+                last = record.getId().getValue();
+                if (id.equals(record.getValue().get("id")) && "1".equals(record.getValue().get("compensated"))) {
+                    return true;
+                }
+            }
+            if (!advanced) {
+                return false;
+            }
+        }
     }
 
     // 用于线程池处理的任务
@@ -165,7 +695,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //            }
 //        }
 //    }
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+    // 返回订单是否已经落库
+    private boolean handleVoucherOrder(VoucherOrder voucherOrder) {
+        // 0.幂等落库模式：由唯一索引保证一人一单，不需要加锁
+        if (seckillProperties.isIdempotentInsert()) {
+            return proxy.createVoucherOrder(voucherOrder);
+        }
         // 1.获取用户
         Long userId = voucherOrder.getUserId();
         // 2.创建锁对象
@@ -176,46 +711,132 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!isLock) {
             // 获取锁失败，直接返回失败或者重试
             log.error("不允许重复下单！");
-            return;
+            return false;
         }
         try {
             //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-            proxy.createVoucherOrder(voucherOrder);
+            return proxy.createVoucherOrder(voucherOrder);
         } finally {
             // 释放锁
             lock.unlock();
         }
     }
+    //注意：消费线程中拿不到AopContext，这里直接注入代理对象，保证事务生效
+    @Lazy
+    @Autowired
     private IVoucherOrderService proxy;
     @Override
     public Result seckillVoucher(Long voucherId) {
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //获取订单
-        long orderId = redisIdWorker.nextId("order");
-        // 1 执行lua脚本
-        Long result = redisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
-        );
+        // 0 预热时加载了秒杀时间窗口，不在时间内直接拒绝，不去租库存也不访问redis
+        long now = System.currentTimeMillis();
+        int window = seckillPreheater.checkWindow(voucherId, now);
+        if (window != SeckillPreheater.IN_WINDOW) {
+            return Result.fail(window == SeckillPreheater.NOT_STARTED ? "秒杀尚未开始！" : "秒杀已经结束！");
+        }
+        // 0.1 开启了本地库存租约，先从本地拿库存，拿到了脚本就不再扣redis库存
+        boolean leased = seckillProperties.isLeaseEnabled();
+        if (leased && !stockLeaseManager.tryAcquire(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 0.2 本地已经标记售罄，直接拒绝，不再访问redis
+        if (!leased && soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        long orderId;
+        StockBuckets.Layout layout;
+        int home;
+        List<String> queueKeys;
+        Long result;
+        try {
+            //获取订单
+            orderId = idGenerator.nextId("order");
+            // 1 执行lua脚本，分桶的券只访问用户所在的桶
+            layout = stockBuckets.layout(voucherId);
+            home = layout.bucketOf(userId);
+            queueKeys = queueKeys();
+            List<String> keys = new ArrayList<>(queueKeys.size() + 2);
+            keys.add(layout.stockKey(home));
+            keys.add(layout.orderKey(home));
+            keys.addAll(queueKeys);
+            long[] beginEnd = seckillPreheater.window(voucherId);
+            result = scriptRegistry.execute(
+                    "seckill.lua",
+                    Long.class,
+                    keys,
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    leased ? "1" : "0",
+                    String.valueOf(now),
+                    beginEnd == null ? "" : String.valueOf(beginEnd[0]),
+                    beginEnd == null ? "" : String.valueOf(beginEnd[1]),
+                    String.valueOf(layout.getBuckets()),
+                    layout.getMembership()
+            );
+        } catch (RuntimeException e) {
+            // 1.1 生成订单id或执行脚本异常，拿到的本地库存还回去，否则要等租约过期才能收回
+            if (leased) {
+                stockLeaseManager.release(voucherId);
+            }
+            throw e;
+        }
         // 2 判断结果为0
         assert result != null;
         int r = result.intValue();
+        // 2.0 用户所在的桶没有库存，脚本已经占住了一人一单的记录，到其他桶扣库存
+        if (r == StockBuckets.BUCKET_EMPTY) {
+            r = takeFromOtherBuckets(layout, home, voucherId, userId, orderId, queueKeys);
+        }
         if(r != 0){
-            // 2.1 不为0，代表没有购买资格
+            // 2.1 不为0，代表没有购买资格，拿到的本地库存还回去
+            if (leased) {
+                stockLeaseManager.release(voucherId);
+            }
+            // 2.2 库存不足，标记售罄并广播
+            if (r == 1) {
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+            if (r == SeckillPreheater.NOT_STARTED) {
+                return Result.fail("秒杀尚未开始！");
+            }
+            if (r == SeckillPreheater.ENDED) {
+                return Result.fail("秒杀已经结束！");
+            }
             return Result.fail(r == 1 ?"库存不足" :"不能重复下单");
         }
 
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
         // 3 返回订单id
         return Result.ok(orderId);
     }
 
+    // 订单队列分区数、订单消息队列、超时队列的时间格（开启超时取消时）
+    private List<String> queueKeys() {
+        String timeoutKey = orderTimeoutQueue.scheduleKey();
+        return StrUtil.isEmpty(timeoutKey)
+                ? Arrays.asList(SECKILL_PARTITIONS_KEY, seckillProperties.getStreamKey())
+                : Arrays.asList(SECKILL_PARTITIONS_KEY, seckillProperties.getStreamKey(), timeoutKey);
+    }
+
+    // 分桶的券：依次到其他桶扣库存，每次只访问一个桶；都没有库存时撤销占住的购买记录，返回1
+    // 注意：中途异常时不撤销，购买记录可能已经随订单生效，宁可让用户这次下单失败也不能重复下单
+    private int takeFromOtherBuckets(StockBuckets.Layout layout, int home, Long voucherId, Long userId,
+                                     long orderId, List<String> queueKeys) {
+        for (int i = 1; i < layout.getBuckets(); i++) {
+            List<String> keys = new ArrayList<>(queueKeys.size() + 1);
+            keys.add(layout.stockKey((home + i) % layout.getBuckets()));
+            keys.addAll(queueKeys);
+            Long r = scriptRegistry.execute("seckill-bucket.lua", Long.class, keys,
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId));
+            if (r != null && r == 0) {
+                return 0;
+            }
+        }
+        stockBuckets.cancel(voucherId, userId, false);
+        return 1;
+    }
+
 //阻塞队列
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
@@ -326,30 +947,41 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
     @Transactional(rollbackFor = Exception.class)
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        //幂等落库模式：唯一索引冲突时，只有同一个订单已经落库才算成功
+        if (seckillProperties.isIdempotentInsert()) {
+            return createVoucherOrdersIdempotent(Collections.singletonList(voucherOrder))
+                    || getById(voucherOrder.getId()) != null;
+        }
 
         //5 一人一单
-        Long  userId = UserHolder.getUser().getId();
+        //注意：这里运行在消费线程中，UserHolder中没有用户，需要从订单中取
+        Long  userId = voucherOrder.getUserId();
+        Long voucherId = voucherOrder.getVoucherId();
 
         //intern 返回字符串的规范标识
         //去字符串常量池查找是否存在当前值
         //synchronized (userId.toString().intern()) {
 
-            //5.1 查询订单
-            int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder).count();
+            //5.1 查询订单，已取消的订单不算
+            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).ne("status", 4).count();
 
             //5.2 判断用户是否下过单
             if (count > 0) {
+                //消息重投，订单已经落库
+                if (getById(voucherOrder.getId()) != null) {
+                    return true;
+                }
                 //用户已经购买过了
                 log.error("不允许重复下单！");
-                return;
+                return false;
             }
 
             //5，扣减库存  加锁 控制版本号（库存）乐观锁控制
             //失败率提高 （更改判断条件）
             boolean success = seckillVoucherService.update()
                     .setSql("stock= stock -1") //set stock = stock -1
-                    .eq("voucher_id", voucherOrder) //where id = ?
+                    .eq("voucher_id", voucherId) //where id = ?
 //                .eq("stock",voucher.getStock()) //and stock = ?
                     //不需要判断是否已更改 只要保证库存不会超卖也就是不小于0
                     .gt("stock", 0) //and stock > 0
@@ -357,11 +989,170 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             if (!success) {
                 //扣减库存
                 log.error("库存不足！！");
-                return;
+                return false;
             }
 
-            save(voucherOrder);
+            return save(voucherOrder);
+        }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        if (seckillProperties.isIdempotentInsert()) {
+            createVoucherOrdersIdempotent(voucherOrders);
+            return;
+        }
+        //1 一人一单已经由lua脚本保证，这里只需要过滤掉已经落库的订单（消息重投时可能出现）
+        //  一批只查一次，代替每单一次的count查询
+        List<Long> orderIds = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existIds = query().select("id").in("id", orderIds).list()
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> newOrders = voucherOrders.stream()
+                .filter(order -> !existIds.contains(order.getId()))
+                .collect(Collectors.toList());
+        if (newOrders.isEmpty()) {
+            return;
         }
-}
 
+        //2 按优惠券聚合扣减库存
+        deductStock(newOrders);
 
+        //3 多行插入订单
+        getBaseMapper().insertBatch(newOrders);
+    }
+
+    //依靠 tb_voucher_order 的唯一索引 uk_voucher_user(voucher_id, user_id, cancel_id) 保证一人一单，不再查询订单是否存在：
+    //未取消的订单cancel_id都是0，同一个用户同一个券只能有一条；取消时cancel_id设为订单id，让出索引，可以再次下单
+    //先插入订单，唯一索引冲突说明订单已经落库（消息重投）或者用户已经下过单，返回false
+    private boolean createVoucherOrdersIdempotent(List<VoucherOrder> voucherOrders) {
+        //1 多行插入订单，先插入再扣库存，冲突时还没有锁库存行
+        try {
+            getBaseMapper().insertBatch(voucherOrders);
+        } catch (DuplicateKeyException e) {
+            //注意：多行插入冲突时整条语句失败，无法区分哪些订单是新的，抛出异常由调用方整批回滚后逐条重试
+            if (voucherOrders.size() > 1) {
+                throw e;
+            }
+            //单条冲突，语句失败不影响事务，直接返回
+            log.debug("订单已存在，id={}", voucherOrders.get(0).getId());
+            return false;
+        }
+        //2 按优惠券聚合扣减库存
+        deductStock(voucherOrders);
+        return true;
+    }
+
+    //按优惠券聚合，每个优惠券只扣减一次库存 set stock = stock - n where voucher_id = ? and stock >= n
+    private void deductStock(List<VoucherOrder> voucherOrders) {
+        Map<Long, Long> countByVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+        //开启了延迟扣减，事务提交后累计到内存中，定时合并刷新到数据库
+        if (seckillProperties.isStockWriteBehind()) {
+            stockWriteBehind.deduct(countByVoucher);
+            return;
+        }
+        //按voucherId顺序更新，避免并发批次之间行锁死锁
+        countByVoucher.forEach((voucherId, n) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + n)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", n)
+                    .update();
+            if (!success) {
+                //整批回滚，消息留在pending-list中等待重试
+                throw new IllegalStateException("库存不足！voucherId=" + voucherId + ", n=" + n);
+            }
+        });
+    }
+
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId) {
+        long timeout = seckillProperties.getOrderStatusWait().toMillis();
+        //等待超时返回PENDING，客户端重新发起等待
+        DeferredResult<Result> result = new DeferredResult<>(timeout, Result.ok(OrderStatusNotifier.PENDING));
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            result.setResult(Result.fail("未登录"));
+            return result;
+        }
+        //订单落库或者失败时立刻返回
+        Runnable cancel = orderStatusNotifier.await(orderId, user.getId(),
+                status -> result.setResult(toResult(status)));
+        result.onCompletion(cancel);
+        return result;
+    }
+
+    @Override
+    public SseEmitter subscribeOrderStatus(Long orderId) {
+        SseEmitter emitter = new SseEmitter(seckillProperties.getOrderStatusWait().toMillis());
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            emitter.completeWithError(new IllegalStateException("未登录"));
+            return emitter;
+        }
+        //先推送一次当前状态，有结果时推送结果并结束
+        sendStatus(emitter, OrderStatusNotifier.PENDING, false);
+        Runnable cancel = orderStatusNotifier.await(orderId, user.getId(),
+                status -> sendStatus(emitter, status, true));
+        emitter.onCompletion(cancel);
+        emitter.onTimeout(cancel);
+        return emitter;
+    }
+
+    @Override
+    public Result rebalancePartitions(Integer partitions) {
+        if (partitions == null || partitions < 1) {
+            return Result.fail("分区数必须大于0！");
+        }
+        //记录旧分区的栅栏并切换分区数，之后由消费线程完成drain
+        if (!partitionManager.rebalance(partitions)) {
+            return Result.fail("上一次分区调整还未完成！");
+        }
+        return Result.ok(partitionManager.partitionCount());
+    }
+
+    private void sendStatus(SseEmitter emitter, String status, boolean complete) {
+        try {
+            emitter.send(SseEmitter.event().name("status").data(toResult(status)));
+            if (complete) {
+                emitter.complete();
+            }
+        } catch (Exception e) {
+            //客户端已经断开
+            emitter.completeWithError(e);
+        }
+    }
+
+    private static Result toResult(String status) {
+        if (status == null) {
+            return Result.fail("订单不存在");
+        }
+        return OrderStatusNotifier.FAILED.equals(status) ? Result.fail("下单失败") : Result.ok(status);
+    }
+
+    /**
+     * 取消未支付的订单并归还数据库库存
+     * @return 0：取消成功  1：订单不是未支付状态  2：订单还没有落库
+     */
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public int cancelVoucherOrder(VoucherOrder voucherOrder) {
+        //1 只取消未支付的订单 update tb_voucher_order set status = 4, cancel_id = id where id = ? and status = 1
+        //  cancel_id设为订单id后不再占用唯一索引，用户可以再次下单
+        boolean cancelled = update()
+                .set("status", 4)
+                .set("cancel_id", voucherOrder.getId())
+                .eq("id", voucherOrder.getId())
+                .eq("status", 1)
+                .update();
+        if (!cancelled) {
+            return getById(voucherOrder.getId()) == null ? 2 : 1;
+        }
+        //2 归还库存，与延迟扣减的顺序无关
+        seckillVoucherService.update()
+                .setSql("stock = stock + 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .update();
+        return 0;
+    }
+}
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,14 +8,29 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillPreheater;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.StockBuckets;
+import com.hmdp.utils.StockReconciler;
+import com.hmdp.utils.StockWriteBehind;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_BUCKETS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_MEMBERSHIP_KEY;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
@@ -25,15 +41,31 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
+    //seckill.lua支持的购买记录存储方式
+    private static final Set<String> MEMBERSHIPS = new HashSet<>(Arrays.asList("set", "bitmap", "roaring"));
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
+
+    @Autowired
+    private StockWriteBehind stockWriteBehind;
+
+    @Autowired
+    private StockReconciler stockReconciler;
+
+    @Autowired
+    private SeckillPreheater seckillPreheater;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -45,17 +77,126 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
+        String membership = voucher.getMembership();
+        if (StrUtil.isNotBlank(membership) && !MEMBERSHIPS.contains(membership)) {
+            throw new IllegalArgumentException("不支持的购买记录存储方式：" + membership);
+        }
         // 保存优惠券
         save(voucher);
         // 保存秒杀信息
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setTotalStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        //秒杀时间窗口和优惠券信息，本地和seckill.lua据此判断是否在秒杀时间内
+        seckillPreheater.saveWindow(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime(), voucher);
 
+        //购买记录的存储方式要在开卖之前确定，之后不能修改
+        if (StrUtil.isNotBlank(membership)) {
+            redisTemplate.opsForValue().set(SECKILL_MEMBERSHIP_KEY + voucher.getId(), membership);
+        }
         //保存秒杀库到redis
-        redisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        Integer buckets = voucher.getStockBuckets();
+        if (buckets == null || buckets <= 1) {
+            redisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+            return;
+        }
+        //热点券：库存拆分到多个桶，下单时按用户选择桶
+        int[] stocks = StockBuckets.split(voucher.getStock(), buckets);
+        for (int i = 0; i < buckets; i++) {
+            redisTemplate.opsForValue().set(StockBuckets.stockKey(voucher.getId(), i), String.valueOf(stocks[i]));
+        }
+        //桶数最后写入，脚本看到桶数时所有桶都已经就绪
+        redisTemplate.opsForValue().set(SECKILL_BUCKETS_KEY + voucher.getId(), buckets.toString());
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充数量必须大于0");
+        }
+        //1 数据库增加库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count + ", total_stock = total_stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在！");
+        }
+        //2 redis增加库存，分桶的券平均加到每个桶
+        String bucketsStr = redisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId);
+        int buckets = StrUtil.isBlank(bucketsStr) ? 1 : Integer.parseInt(bucketsStr);
+        if (buckets <= 1) {
+            redisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, count);
+        } else {
+            int[] stocks = StockBuckets.split(count, buckets);
+            for (int i = 0; i < buckets; i++) {
+                redisTemplate.opsForValue().increment(StockBuckets.stockKey(voucherId, i), stocks[i]);
+            }
+        }
+        //3 清除所有实例的售罄标记
+        soldOutRegistry.reset(voucherId);
+        return Result.ok();
+    }
+
+    @Override
+    public Result preheatSeckillVoucher(Long voucherId) {
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (seckillVoucher == null) {
+            return Result.fail("秒杀券不存在！");
+        }
+        return Result.ok(seckillPreheater.preheat(seckillVoucher));
+    }
+
+    @Override
+    public Result checkSeckillStock(Long voucherId) {
+        //1 查询数据库库存
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (seckillVoucher == null) {
+            return Result.fail("秒杀券不存在！");
+        }
+        //2 汇总redis中各个桶的库存
+        String bucketsStr = redisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId);
+        int buckets = StrUtil.isBlank(bucketsStr) ? 1 : Integer.parseInt(bucketsStr);
+        List<String> keys = new ArrayList<>(buckets);
+        if (buckets <= 1) {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+        } else {
+            for (int i = 0; i < buckets; i++) {
+                keys.add(StockBuckets.stockKey(voucherId, i));
+            }
+        }
+        List<String> values = redisTemplate.opsForValue().multiGet(keys);
+        List<Long> bucketStocks = new ArrayList<>(buckets);
+        long redisStock = 0;
+        for (String value : values == null ? Collections.<String>emptyList() : values) {
+            long stock = StrUtil.isBlank(value) ? 0 : Long.parseLong(value);
+            bucketStocks.add(stock);
+            redisStock += stock;
+        }
+        //3 redis先扣库存，数据库异步扣，正常情况下 redis库存 <= 数据库库存，差值是还没落库的订单
+        //  redis库存大于数据库库存说明有超卖风险
+        long drift = seckillVoucher.getStock() - redisStock;
+        if (drift < 0) {
+            log.error("秒杀库存不一致，voucherId={}, redis={}, db={}", voucherId, redisStock, seckillVoucher.getStock());
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("voucherId", voucherId);
+        report.put("buckets", bucketStocks);
+        report.put("redisStock", redisStock);
+        report.put("dbStock", seckillVoucher.getStock());
+        report.put("drift", drift);
+        report.put("consistent", drift >= 0);
+        //4 数据库库存与已落库订单对账
+        if (seckillVoucher.getTotalStock() != null && seckillVoucher.getTotalStock() > 0) {
+            report.put("totalStock", seckillVoucher.getTotalStock());
+            report.put("pendingFlush", stockWriteBehind.pending(voucherId));
+            report.put("dbDrift", stockReconciler.reconcile(seckillVoucher));
+        }
+        return Result.ok(report);
     }
 }
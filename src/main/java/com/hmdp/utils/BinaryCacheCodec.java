@@ -0,0 +1,595 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于类结构的二进制编码
+ *
+ *  格式：版本(1字节) 标志(1字节) [LZ4时：原始长度varint] 正文
+ *  正文：类结构指纹(4字节) 对象
+ *  对象：null位图 + 按字段名排序依次写入非空字段的值，不写字段名；整数用zigzag varint，
+ *       字符串是长度+UTF-8，时间是epoch秒+纳秒，嵌套对象递归，List是长度+元素
+ *  指纹由字段名和字段类型（包括嵌套对象）计算，类结构变化后旧值解码失败，由调用方重建。
+ *  正文超过compressThreshold时用LZ4压缩，压缩后没有变小则不压缩
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    //格式版本，修改编码格式时加1，并保留旧版本的解码
+    static final byte VERSION = 1;
+
+    private static final int FLAG_LZ4 = 1;
+
+    //版本+标志
+    private static final int HEADER = 2;
+
+    //LZ4的最大压缩比
+    private static final int MAX_LZ4_RATIO = 255;
+
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    private final LZ4Compressor compressor = LZ4.fastCompressor();
+
+    //safeDecompressor按压缩数据的长度做边界检查，截断的数据不会读越界
+    private final LZ4SafeDecompressor decompressor = LZ4.safeDecompressor();
+
+    private final CacheProperties cacheProperties;
+
+    //类 -> 类结构
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    public BinaryCacheCodec(CacheProperties cacheProperties) {
+        this.cacheProperties = cacheProperties;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schema(value.getClass());
+        Output out = new Output();
+        out.writeInt(schema.fingerprint);
+        schema.write(out, value);
+        return finish(out);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, Class<T> type) {
+        try {
+            Schema schema = schema(type);
+            Input in = open(bytes, offset);
+            checkFingerprint(in, schema.fingerprint);
+            T value = type.cast(schema.read(in));
+            in.checkEnd();
+            return value;
+        } catch (SerializationException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new SerializationException("缓存解码失败，type=" + type.getName(), e);
+        }
+    }
+
+    @Override
+    public byte[] encodeList(List<?> values, Class<?> elementType) {
+        Schema schema = schema(elementType);
+        Output out = new Output();
+        out.writeInt(listFingerprint(schema));
+        out.writeVarLong(values.size());
+        for (Object value : values) {
+            if (value == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(1);
+                schema.write(out, value);
+            }
+        }
+        return finish(out);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementType) {
+        try {
+            Schema schema = schema(elementType);
+            Input in = open(bytes, 0);
+            checkFingerprint(in, listFingerprint(schema));
+            int size = in.readLength();
+            List<T> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(in.readByte() == 0 ? null : elementType.cast(schema.read(in)));
+            }
+            in.checkEnd();
+            return values;
+        } catch (SerializationException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new SerializationException("缓存解码失败，elementType=" + elementType.getName(), e);
+        }
+    }
+
+    private static int listFingerprint(Schema schema) {
+        return 31 * schema.fingerprint + 1;
+    }
+
+    // 写入头部，正文超过阈值时压缩
+    private byte[] finish(Output out) {
+        int length = out.pos - HEADER;
+        int threshold = cacheProperties.getCodecCompressThreshold();
+        if (threshold > 0 && length >= threshold) {
+            int max = compressor.maxCompressedLength(length);
+            byte[] compressed = new byte[HEADER + 5 + max];
+            compressed[0] = VERSION;
+            compressed[1] = FLAG_LZ4;
+            int pos = Output.writeVarLong(compressed, HEADER, length);
+            int n = compressor.compress(out.buf, HEADER, length, compressed, pos, max);
+            if (pos + n < out.pos) {
+                return Arrays.copyOf(compressed, pos + n);
+            }
+        }
+        out.buf[0] = VERSION;
+        out.buf[1] = 0;
+        return Arrays.copyOf(out.buf, out.pos);
+    }
+
+    // 检查版本，压缩过的先解压，返回指向正文的Input
+    private Input open(byte[] bytes, int offset) {
+        if (bytes.length - offset < HEADER || bytes[offset] != VERSION) {
+            throw new SerializationException("不支持的缓存格式版本");
+        }
+        if ((bytes[offset + 1] & FLAG_LZ4) == 0) {
+            return new Input(bytes, offset + HEADER);
+        }
+        Input header = new Input(bytes, offset + HEADER);
+        long length = header.readVarLong();
+        //LZ4最多压缩到约1/255，超过这个长度说明数据已经损坏，不能按它申请内存
+        if (length < 0 || length > (long) (bytes.length - header.pos) * MAX_LZ4_RATIO) {
+            throw new SerializationException("缓存数据长度错误");
+        }
+        byte[] body = new byte[(int) length];
+        int n = decompressor.decompress(bytes, header.pos, bytes.length - header.pos, body, 0, body.length);
+        if (n != body.length) {
+            throw new SerializationException("缓存数据长度错误");
+        }
+        return new Input(body, 0);
+    }
+
+    private static void checkFingerprint(Input in, int fingerprint) {
+        if (in.readInt() != fingerprint) {
+            throw new SerializationException("类结构已经变化");
+        }
+    }
+
+    private Schema schema(Class<?> type) {
+        //不能用computeIfAbsent，创建时会递归创建嵌套对象的类结构
+        Schema schema = schemas.get(type);
+        if (schema == null) {
+            schema = new Schema(type);
+            Schema old = schemas.putIfAbsent(type, schema);
+            if (old != null) {
+                schema = old;
+            }
+        }
+        return schema;
+    }
+
+    // 参与编码的字段：非static、非transient，包括父类的，按字段名排序
+    private static List<Field> fields(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                    fields.add(field);
+                }
+            }
+        }
+        fields.sort(Comparator.comparing(Field::getName));
+        return fields;
+    }
+
+    // 类结构签名：字段名和字段类型，嵌套对象展开
+    private static String signature(Type type, Set<Class<?>> visiting) {
+        Class<?> raw = rawClass(type);
+        if (type instanceof ParameterizedType) {
+            return raw.getName() + "<" + signature(((ParameterizedType) type).getActualTypeArguments()[0], visiting) + ">";
+        }
+        if (isValue(raw) || !visiting.add(raw)) {
+            return raw.getName();
+        }
+        StringBuilder sb = new StringBuilder(raw.getName()).append('{');
+        for (Field field : fields(raw)) {
+            sb.append(field.getName()).append(':').append(signature(field.getGenericType(), visiting)).append(';');
+        }
+        visiting.remove(raw);
+        return sb.append('}').toString();
+    }
+
+    private static Class<?> rawClass(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        throw new IllegalArgumentException("不支持的缓存字段类型：" + type);
+    }
+
+    // 直接编码的类型，其余的按对象处理
+    private static boolean isValue(Class<?> c) {
+        return c.isPrimitive() || c.isEnum() || c.getName().startsWith("java.");
+    }
+
+    private ValueCodec codec(Type type) {
+        Class<?> c = rawClass(type);
+        if (c == String.class) {
+            return STRING;
+        } else if (c == Long.class || c == long.class) {
+            return LONG;
+        } else if (c == Integer.class || c == int.class) {
+            return INT;
+        } else if (c == Short.class || c == short.class) {
+            return SHORT;
+        } else if (c == Byte.class || c == byte.class) {
+            return BYTE;
+        } else if (c == Boolean.class || c == boolean.class) {
+            return BOOLEAN;
+        } else if (c == Double.class || c == double.class) {
+            return DOUBLE;
+        } else if (c == Float.class || c == float.class) {
+            return FLOAT;
+        } else if (c == BigDecimal.class) {
+            return BIG_DECIMAL;
+        } else if (c == LocalDateTime.class) {
+            return LOCAL_DATE_TIME;
+        } else if (c == LocalDate.class) {
+            return LOCAL_DATE;
+        } else if (c == Date.class) {
+            return DATE;
+        } else if (c.isEnum()) {
+            return enumCodec(c);
+        } else if (c == List.class && type instanceof ParameterizedType) {
+            return listCodec(codec(((ParameterizedType) type).getActualTypeArguments()[0]));
+        } else if (!isValue(c)) {
+            return beanCodec(c);
+        }
+        throw new IllegalArgumentException("不支持的缓存字段类型：" + type);
+    }
+
+    private interface ValueCodec {
+        void write(Output out, Object value);
+
+        Object read(Input in);
+    }
+
+    private static final ValueCodec STRING = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeString((String) value); }
+        public Object read(Input in) { return in.readString(); }
+    };
+
+    private static final ValueCodec LONG = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeZigZag((Long) value); }
+        public Object read(Input in) { return in.readZigZag(); }
+    };
+
+    private static final ValueCodec INT = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeZigZag((Integer) value); }
+        public Object read(Input in) { return (int) in.readZigZag(); }
+    };
+
+    private static final ValueCodec SHORT = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeZigZag((Short) value); }
+        public Object read(Input in) { return (short) in.readZigZag(); }
+    };
+
+    private static final ValueCodec BYTE = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeByte((Byte) value); }
+        public Object read(Input in) { return in.readByte(); }
+    };
+
+    private static final ValueCodec BOOLEAN = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeByte((Boolean) value ? 1 : 0); }
+        public Object read(Input in) { return in.readByte() != 0; }
+    };
+
+    private static final ValueCodec DOUBLE = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeLong(Double.doubleToLongBits((Double) value)); }
+        public Object read(Input in) { return Double.longBitsToDouble(in.readLong()); }
+    };
+
+    private static final ValueCodec FLOAT = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeInt(Float.floatToIntBits((Float) value)); }
+        public Object read(Input in) { return Float.intBitsToFloat(in.readInt()); }
+    };
+
+    private static final ValueCodec BIG_DECIMAL = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeString(value.toString()); }
+        public Object read(Input in) { return new BigDecimal(in.readString()); }
+    };
+
+    private static final ValueCodec LOCAL_DATE_TIME = new ValueCodec() {
+        public void write(Output out, Object value) {
+            LocalDateTime time = (LocalDateTime) value;
+            out.writeZigZag(time.toEpochSecond(ZoneOffset.UTC));
+            out.writeVarLong(time.getNano());
+        }
+        public Object read(Input in) {
+            long seconds = in.readZigZag();
+            return LocalDateTime.ofEpochSecond(seconds, (int) in.readVarLong(), ZoneOffset.UTC);
+        }
+    };
+
+    private static final ValueCodec LOCAL_DATE = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeZigZag(((LocalDate) value).toEpochDay()); }
+        public Object read(Input in) { return LocalDate.ofEpochDay(in.readZigZag()); }
+    };
+
+    private static final ValueCodec DATE = new ValueCodec() {
+        public void write(Output out, Object value) { out.writeZigZag(((Date) value).getTime()); }
+        public Object read(Input in) { return new Date(in.readZigZag()); }
+    };
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ValueCodec enumCodec(Class<?> type) {
+        return new ValueCodec() {
+            public void write(Output out, Object value) { out.writeString(((Enum<?>) value).name()); }
+            public Object read(Input in) { return Enum.valueOf((Class) type, in.readString()); }
+        };
+    }
+
+    private static ValueCodec listCodec(ValueCodec element) {
+        return new ValueCodec() {
+            public void write(Output out, Object value) {
+                List<?> list = (List<?>) value;
+                out.writeVarLong(list.size());
+                for (Object e : list) {
+                    if (e == null) {
+                        out.writeByte(0);
+                    } else {
+                        out.writeByte(1);
+                        element.write(out, e);
+                    }
+                }
+            }
+            public Object read(Input in) {
+                int size = in.readLength();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(in.readByte() == 0 ? null : element.read(in));
+                }
+                return list;
+            }
+        };
+    }
+
+    // 嵌套对象，第一次使用时才取类结构，支持自引用的类
+    private ValueCodec beanCodec(Class<?> type) {
+        return new ValueCodec() {
+            public void write(Output out, Object value) { schema(type).write(out, value); }
+            public Object read(Input in) { return schema(type).read(in); }
+        };
+    }
+
+    /**
+     * 一个类的编码方式：字段、字段的编解码、指纹
+     */
+    private class Schema {
+        final Constructor<?> constructor;
+        final Field[] fields;
+        final ValueCodec[] codecs;
+        final int fingerprint;
+
+        Schema(Class<?> type) {
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("缓存对象需要无参构造方法：" + type.getName(), e);
+            }
+            List<Field> list = fields(type);
+            fields = list.toArray(new Field[0]);
+            codecs = new ValueCodec[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setAccessible(true);
+                codecs[i] = codec(fields[i].getGenericType());
+            }
+            fingerprint = signature(type, new HashSet<>()).hashCode();
+        }
+
+        // null位图 + 非空字段
+        void write(Output out, Object value) {
+            try {
+                int bitmap = out.reserve((fields.length + 7) >>> 3);
+                for (int i = 0; i < fields.length; i++) {
+                    Object field = fields[i].get(value);
+                    if (field != null) {
+                        out.buf[bitmap + (i >>> 3)] |= (byte) (1 << (i & 7));
+                        codecs[i].write(out, field);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object read(Input in) {
+            try {
+                int bitmap = in.skip((fields.length + 7) >>> 3);
+                Object value = constructor.newInstance();
+                for (int i = 0; i < fields.length; i++) {
+                    if ((in.buf[bitmap + (i >>> 3)] & (1 << (i & 7))) != 0) {
+                        fields[i].set(value, codecs[i].read(in));
+                    }
+                }
+                return value;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class Output {
+        byte[] buf = new byte[256];
+        //前两个字节留给头部
+        int pos = HEADER;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        // 预留n个字节，返回起始位置
+        int reserve(int n) {
+            ensure(n);
+            int start = pos;
+            pos += n;
+            return start;
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) {
+                buf[pos++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                buf[pos++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            pos = writeVarLong(buf, pos, v);
+        }
+
+        static int writeVarLong(byte[] buf, int pos, long v) {
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+            return pos;
+        }
+
+        void writeZigZag(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+    }
+
+    private static final class Input {
+        final byte[] buf;
+        int pos;
+
+        Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        // 跳过n个字节，返回起始位置
+        int skip(int n) {
+            if (pos + n > buf.length) {
+                throw new SerializationException("缓存数据不完整");
+            }
+            int start = pos;
+            pos += n;
+            return start;
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v |= (buf[pos++] & 0xFF) << (i * 8);
+            }
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v |= (buf[pos++] & 0xFFL) << (i * 8);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new SerializationException("varint过长");
+        }
+
+        long readZigZag() {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        // 长度不可能超过剩余字节数，防止损坏的数据申请过大的数组
+        int readLength() {
+            long n = readVarLong();
+            if (n < 0 || n > buf.length - pos) {
+                throw new SerializationException("缓存数据长度错误");
+            }
+            return (int) n;
+        }
+
+        String readString() {
+            int n = readLength();
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        void checkEnd() {
+            if (pos != buf.length) {
+                throw new SerializationException("缓存数据有多余的字节");
+            }
+        }
+    }
+}
@@ -1,24 +1,59 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.SerializationException;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * 自定义redis工具类
+ *
+ *  两级缓存：L1是本地的caffeine（W-TinyLFU淘汰，按序列化长度限制容量），缓存反序列化好的对象，
+ *  命中时不访问redis也不解码；L2是redis，值是CacheCodec编码后的字节，空值是长度为0的字节数组，
+ *  逻辑过期的值是8字节过期时间（毫秒）+ 编码后的对象。
+ *  读到无法解码的值（升级前的旧格式、类结构变化）当作未命中，重新查询数据库覆盖。
+ *  删除缓存时通过redis pub/sub广播给所有实例清除L1，广播可能丢失，所以L1只在nearTtl内有效。
+ *  注意：L1返回的是共享对象，调用方不能修改
+ *  回源：本实例内同一个key只有一个线程查询数据库（single-flight），其他线程等待同一个future；
+ *  实例之间用redis锁协调，没抢到锁的实例订阅写入通知（与L1失效共用一个频道），收到通知后读取新值；
+ *  到loadTimeout的2/3还没有结果时降级直接查询数据库。重试和降级查询在有界的loadPool中执行
+ *  穿透：实体id先经过布隆过滤器，一定不存在的id不访问redis和数据库；误判的id仍然缓存空值
+ *  每个key前缀的命中率记录在 cache.gets{prefix,level,result}、cache.hit.ratio{prefix,level} 中
  */
 @Slf4j
 @Component
@@ -26,59 +61,274 @@ public class CacheClient {
 
     private final StringRedisTemplate redisTemplate;
 
-    public CacheClient(StringRedisTemplate redisTemplate) {
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    private final CacheCodec cacheCodec;
+
+    private final CacheProperties cacheProperties;
+
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private ScriptRegistry scriptRegistry;
+
+    @Autowired
+    private IdBloomFilter idBloomFilter;
+
+    //正在回源的key -> 回源结果，同一个key的并发请求共享一次回源
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    //等待其他实例重建的key -> 收到写入通知后执行的重试，single-flight保证每个key本实例只有一个
+    private final Map<String, Runnable> waiters = new ConcurrentHashMap<>();
+
+    //等待超时的定时器，只负责把兜底重试交给loadPool
+    private final ScheduledExecutorService loadExecutor = Executors.newSingleThreadScheduledExecutor(
+            ThreadUtil.newNamedThreadFactory("cache-load-timer-", true));
+
+    //收到通知后的重试、降级查询数据库，不占用请求线程和通知线程；队列有界，满了直接失败
+    private final ThreadPoolExecutor loadPool;
+
+    //逻辑过期时间的字节数
+    static final int EXPIRE_BYTES = 8;
+
+    //redis中没有这个key，或者值无法解码
+    private static final Object ABSENT = new Object();
+
+    //本地缓存 key -> 反序列化好的对象
+    private final Cache<String, NearEntry> nearCache;
+
+    //本地缓存失效的版本号，按key的hash分段，收到失效通知时加一；
+    //读redis之前记下版本号，写入本地缓存后版本号变了说明读到的可能是旧值，不能留在本地缓存
+    private static final int INVALIDATION_STRIPES = 1024;
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+
+    //key前缀 -> 命中统计
+    private final Map<String, CacheStats> stats = new ConcurrentHashMap<>();
+
+    //本地缓存的值，value为null表示缓存的空值
+    private static class NearEntry {
+        final Object value;
+        //逻辑过期时间（毫秒），只有逻辑过期的缓存才有
+        final long expireAt;
+        final int weight;
+
+        NearEntry(Object value, long expireAt, int weight) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.weight = weight;
+        }
+    }
+
+    public CacheClient(StringRedisTemplate redisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       CacheCodec cacheCodec, CacheProperties cacheProperties, MeterRegistry meterRegistry) {
         this.redisTemplate = redisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.cacheCodec = cacheCodec;
+        this.cacheProperties = cacheProperties;
+        this.meterRegistry = meterRegistry;
+        this.loadPool = new ThreadPoolExecutor(cacheProperties.getLoadThreads(), cacheProperties.getLoadThreads(),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(cacheProperties.getLoadQueueSize()),
+                ThreadUtil.newNamedThreadFactory("cache-load-", true));
+        this.nearCache = Caffeine.newBuilder()
+                .maximumWeight(cacheProperties.getNearMaxWeight())
+                .weigher((String key, NearEntry entry) -> entry.weight)
+                .expireAfterWrite(cacheProperties.getNearTtl())
+                .build();
+    }
+
+    @PostConstruct
+    private void init() {
+        //缓存被写入或者删除：清除本地缓存，唤醒等待这个key重建完成的请求
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            nearInvalidate(key);
+            Runnable waiter = waiters.remove(key);
+            if (waiter != null) {
+                waiter.run();
+            }
+        }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
     }
 
 
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        redisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        cacheRedisTemplate.opsForValue().set(key, cacheCodec.encode(value), time, timeUnit);
+        publishInvalidate(key);
     }
 
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
-        redisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        //设置逻辑过期：过期时间 + 对象，对象为null时只有过期时间
+        long expireAt = System.currentTimeMillis() + timeUnit.toMillis(time);
+        byte[] bytes = value == null ? new byte[0] : cacheCodec.encode(value);
+        cacheRedisTemplate.opsForValue().set(key,
+                ByteBuffer.allocate(EXPIRE_BYTES + bytes.length).putLong(expireAt).put(bytes).array());
+        publishInvalidate(key);
+    }
+
+    /**
+     * 删除缓存，并通知所有实例清除本地缓存
+     */
+    public void delete(String key) {
+        redisTemplate.delete(key);
+        nearInvalidate(key);
+        publishInvalidate(key);
     }
 
-    //穿透
+    //穿透：缓存空值，回源与互斥锁方案相同
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback
                                             ,Long time, TimeUnit timeUnit){
+        return queryWithMutex(keyPrefix, id, type, dbFallback, time, timeUnit);
+    }
+
+    /**
+     * 互斥锁解决缓存击穿：未命中时只有一个请求查询数据库并写入缓存，
+     * 其他请求（包括其他实例的）等待写入通知后读取新值，不休眠、不递归
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback
+                                            ,Long time, TimeUnit timeUnit){
         String key = keyPrefix + id;
-        //1 从redis查询商铺缓存
-        String json = redisTemplate.opsForValue().get(key);
+        CacheStats cacheStats = stats(keyPrefix);
+        //0 布隆过滤器判断id一定不存在，直接返回，不访问redis和数据库
+        if (rejectedByBloom(keyPrefix, id, cacheStats)) {
+            return null;
+        }
+        //0.1 先查本地缓存，空值也会缓存
+        NearEntry near = nearGet(key, cacheStats);
+        if (near != null) {
+            return type.cast(near.value);
+        }
+        //1 从redis查询商铺缓存，先记下本地缓存的失效版本
+        long version = nearVersion(key);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        Object cached = decode(key, bytes, b -> cacheCodec.decode(b, type));
 
-        //2 判断是否存在
-        if (StrUtil.isNotBlank(json)) {
+        //2 判断是否存在，命中空值时cached为null
+        if (cached != ABSENT) {
             //3 存在，直接返回
-            return JSONUtil.toBean(json, type);
-
+            cacheStats.redisHit.increment();
+            nearPut(key, version, cached, 0, Math.max(1, bytes.length));
+            return type.cast(cached);
         }
+        cacheStats.redisMiss.increment();
 
-        //判断命中是否是空值
-        if (json != null) {
-            //返回一个错误信息
-            return null;
+        //4 不存在，回源：同一个key本实例只有一个线程查询数据库，其他线程等待它的结果
+        return singleFlight(key, loadWithMutex(key, id, type, dbFallback, time, timeUnit), type);
+    }
+
+    /**
+     * single-flight：本实例内同一个key的并发请求共享一个future，第一个请求负责回源
+     */
+    private <R> R singleFlight(String key, Consumer<CompletableFuture<Object>> loader, Class<R> type) {
+        CompletableFuture<Object> created = new CompletableFuture<>();
+        CompletableFuture<Object> future = inFlight.putIfAbsent(key, created);
+        if (future == null) {
+            //第一个请求负责回源，完成后移除，下一次未命中重新回源
+            future = created;
+            created.whenComplete((v, e) -> inFlight.remove(key, created));
+            try {
+                loader.accept(created);
+            } catch (Exception e) {
+                created.completeExceptionally(e);
+            }
         }
+        try {
+            return type.cast(future.get(cacheProperties.getLoadTimeout().toMillis(), TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存重建被中断，key=" + key, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("缓存重建失败，key=" + key, e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("等待缓存重建超时，key=" + key, e);
+        }
+    }
 
-        //4 不存在，根据id查询数据库
-        R r = dbFallback.apply(id);
+    // 跨实例用redis锁保证只有一个实例查询数据库，没抢到锁的实例等待写入通知
+    private <R, ID> Consumer<CompletableFuture<Object>> loadWithMutex(String key, ID id, Class<R> type,
+                                                Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        return future -> {
+            long deadline = System.currentTimeMillis() + cacheProperties.getLoadTimeout().toMillis();
+            tryLoad(future, key, deadline, () -> {
+                //4 根据id查询数据库
+                R r = dbFallback.apply(id);
+
+                //5 不存在，返回错误
+                if(r == null){
+                    //将空值写入redis，布隆过滤器误判的id由空值兜底
+                    cacheRedisTemplate.opsForValue().set(key,new byte[0],CACHE_NULL_TTL,TimeUnit.MINUTES);
+                    publishInvalidate(key);
+                    return null;
+                }
 
-        //5 不存在，返回错误
-        if(r == null){
-            //将空值写入redis
-            redisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-            return null;
-        }
+                //6 存在，写入redis
+                this.set(key,r,time,timeUnit);
+                return r;
+            }, bytes -> cacheCodec.decode(bytes, type));
+        };
+    }
 
-        //6 存在，写入redis
-        this.set(key,JSONUtil.toJsonStr(r),time,timeUnit);
+    // 1 redis中已经有结果（其他实例重建完成）直接使用  2 抢到锁则回源  3 否则等待写入通知后重试，快到超时时降级查询数据库
+    private void tryLoad(CompletableFuture<Object> future, String key, long deadline,
+                         Supplier<Object> load, Function<byte[], Object> decoder) {
+        Object cached = decode(key, cacheRedisTemplate.opsForValue().get(key), decoder);
+        if (cached != ABSENT) {
+            future.complete(cached);
+            return;
+        }
+        SimpleRedisLock lock = new SimpleRedisLock(key, redisTemplate, scriptRegistry);
+        if (lock.tryLock(LOCK_SHOP_TTL)) {
+            try {
+                //拿到锁之后再检查一次，避免刚释放锁的实例已经写入了
+                cached = decode(key, cacheRedisTemplate.opsForValue().get(key), decoder);
+                future.complete(cached != ABSENT ? cached : load.get());
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        //留给降级查询数据库的时间
+        long fallbackMargin = cacheProperties.getLoadTimeout().toMillis() / 3;
+        long remain = deadline - System.currentTimeMillis();
+        if (remain <= fallbackMargin) {
+            //3 快到超时仍然拿不到锁（持锁实例宕机或者通知丢失，锁要等LOCK_SHOP_TTL才释放），
+            //  降级直接查询数据库，不让等待的请求全部超时失败；single-flight保证本实例每个key只查一次
+            log.warn("等待其他实例重建缓存超时，直接查询数据库，key={}", key);
+            future.complete(load.get());
+            return;
+        }
+        //3.1 注册等待，收到写入通知后在loadPool中重试
+        Runnable retry = () -> submitLoad(future, () -> tryLoad(future, key, deadline, load, decoder));
+        waiters.put(key, retry);
+        //3.2 注册之后再检查一次，避免在注册之前已经写入、错过了通知
+        cached = decode(key, cacheRedisTemplate.opsForValue().get(key), decoder);
+        if (cached != ABSENT && waiters.remove(key, retry)) {
+            future.complete(cached);
+            return;
+        }
+        //3.3 到降级时间还没有收到通知，最后重试一次，拿不到锁就降级，在请求等待超时之前给出结果
+        loadExecutor.schedule(() -> {
+            if (waiters.remove(key, retry)) {
+                retry.run();
+            }
+        }, remain - fallbackMargin, TimeUnit.MILLISECONDS);
+    }
 
-        //7 返回
-        return r;
+    // 在loadPool中执行重试，队列满时直接失败，不阻塞通知线程
+    private void submitLoad(CompletableFuture<Object> future, Runnable task) {
+        try {
+            loadPool.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
     }
 
 
@@ -88,21 +338,50 @@ public class CacheClient {
     public <R,ID> R queryWithLogicalExpire(String keyPrefix, ID id , Class<R> type,String lockKey
                                         ,Function<ID,R> deFallback,Long time, TimeUnit timeUnit){
         String key = keyPrefix + id;
-        //1 从redis查询商铺缓存
-        String json = redisTemplate.opsForValue().get(key);
+        CacheStats cacheStats = stats(keyPrefix);
+        //0 布隆过滤器判断id一定不存在，直接返回
+        if (rejectedByBloom(keyPrefix, id, cacheStats)) {
+            return null;
+        }
+        //0.1 先查本地缓存，本地缓存没有逻辑过期才能直接返回；
+        //    过期了说明可能已经有实例重建过，再去redis确认
+        NearEntry near = nearGet(key, cacheStats);
+        if (near != null && near.expireAt > System.currentTimeMillis()) {
+            return type.cast(near.value);
+        }
+        //1 从redis查询商铺缓存，先记下本地缓存的失效版本
+        long version = nearVersion(key);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
 
         //2 判断是否存在
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
             //3 存在，直接返回
+            cacheStats.redisMiss.increment();
             return null;
 
         }
-        //4 命中 需要先把json反序列化对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        cacheStats.redisHit.increment();
+        //4 命中 前8个字节是逻辑过期时间，后面的对象直接解码，不经过中间对象
+        long expireAt;
+        R r;
+        try {
+            if (bytes.length < EXPIRE_BYTES) {
+                throw new SerializationException("缓存数据不完整");
+            }
+            expireAt = ByteBuffer.wrap(bytes).getLong();
+            r = bytes.length == EXPIRE_BYTES ? null : cacheCodec.decode(bytes, EXPIRE_BYTES, type);
+        } catch (SerializationException e) {
+            //4.1 旧格式或者类结构已经变化，没有可以返回的旧值，同步重建一次
+            log.warn("缓存无法解码，重建，key={}, {}", key, e.getMessage());
+            return singleFlight(key, future -> {
+                R fresh = deFallback.apply(id);
+                this.setWithLogicalExpire(key, fresh, time, timeUnit);
+                future.complete(fresh);
+            }, type);
+        }
+        nearPut(key, version, r, expireAt, bytes.length);
         //5 判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
+        if(expireAt > System.currentTimeMillis()){
             //5.1 未过期，直接返回店铺信息
             return r;
         }
@@ -141,6 +420,117 @@ public class CacheClient {
         return r;
     }
 
+    // 解码redis中的值：不存在返回ABSENT，空值返回null；无法解码的值删除后返回ABSENT，由调用方重建
+    private Object decode(String key, byte[] bytes, Function<byte[], Object> decoder) {
+        if (bytes == null) {
+            return ABSENT;
+        }
+        if (bytes.length == 0) {
+            return null;
+        }
+        try {
+            return decoder.apply(bytes);
+        } catch (SerializationException e) {
+            log.warn("缓存无法解码，删除后重建，key={}, {}", key, e.getMessage());
+            cacheRedisTemplate.delete(key);
+            return ABSENT;
+        }
+    }
+
+    private boolean rejectedByBloom(String keyPrefix, Object id, CacheStats cacheStats) {
+        if (cacheProperties.isBloomEnabled() && !idBloomFilter.mightContainKey(keyPrefix, id)) {
+            cacheStats.bloomReject.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private NearEntry nearGet(String key, CacheStats cacheStats) {
+        if (!cacheProperties.isNearEnabled()) {
+            return null;
+        }
+        NearEntry entry = nearCache.getIfPresent(key);
+        (entry != null ? cacheStats.nearHit : cacheStats.nearMiss).increment();
+        return entry;
+    }
+
+    // 写入本地缓存：version是读redis之前的失效版本，读redis期间收到了失效通知就不写；
+    // 写入之后再检查一次，检查和写入之间收到的通知也不会漏掉
+    private void nearPut(String key, long version, Object value, long expireAt, int weight) {
+        if (!cacheProperties.isNearEnabled() || nearVersion(key) != version) {
+            return;
+        }
+        NearEntry entry = new NearEntry(value, expireAt, weight);
+        nearCache.put(key, entry);
+        if (nearVersion(key) != version) {
+            nearCache.asMap().remove(key, entry);
+        }
+    }
+
+    // 先增加失效版本再清除，正在读redis的请求写入本地缓存时能发现
+    private void nearInvalidate(String key) {
+        invalidations.incrementAndGet(stripe(key));
+        nearCache.invalidate(key);
+    }
+
+    private long nearVersion(String key) {
+        return invalidations.get(stripe(key));
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % INVALIDATION_STRIPES;
+    }
+
+    // PUBLISH cache:channel:invalidate key，清除所有实例的本地缓存，并唤醒等待重建的请求
+    private void publishInvalidate(String key) {
+        redisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private CacheStats stats(String keyPrefix) {
+        return stats.computeIfAbsent(keyPrefix, CacheStats::new);
+    }
+
+    //每个key前缀的命中统计
+    private class CacheStats {
+        final Counter nearHit;
+        final Counter nearMiss;
+        final Counter redisHit;
+        final Counter redisMiss;
+        final Counter bloomReject;
+
+        CacheStats(String keyPrefix) {
+            nearHit = counter(keyPrefix, "near", "hit");
+            nearMiss = counter(keyPrefix, "near", "miss");
+            redisHit = counter(keyPrefix, "redis", "hit");
+            redisMiss = counter(keyPrefix, "redis", "miss");
+            bloomReject = counter(keyPrefix, "bloom", "reject");
+            ratio(keyPrefix, "near", nearHit, nearMiss);
+            ratio(keyPrefix, "redis", redisHit, redisMiss);
+        }
+
+        private Counter counter(String keyPrefix, String level, String result) {
+            return Counter.builder("cache.gets")
+                    .tag("prefix", keyPrefix)
+                    .tag("level", level)
+                    .tag("result", result)
+                    .register(meterRegistry);
+        }
+
+        private void ratio(String keyPrefix, String level, Counter hit, Counter miss) {
+            Gauge.builder("cache.hit.ratio", () -> {
+                double total = hit.count() + miss.count();
+                return total == 0 ? 0 : hit.count() / total;
+            }).tag("prefix", keyPrefix).tag("level", level).register(meterRegistry);
+        }
+    }
+
+
+    @PreDestroy
+    private void destroy() {
+        loadExecutor.shutdownNow();
+        loadPool.shutdownNow();
+    }
+
 
     //缓存击穿（互斥锁）加锁
     private boolean tryLock(String key){
@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.util.List;
+
+/**
+ * 缓存值的编解码，CacheClient通过它读写redis中的字节
+ *
+ *  编码结果的第一个字节是格式版本，滚动升级时新旧实例共存，读到不认识的版本或者类结构已经变化的值，
+ *  decode抛出SerializationException，调用方把它当作未命中，重新查询数据库覆盖
+ */
+public interface CacheCodec {
+
+    byte[] encode(Object value);
+
+    /**
+     * 从bytes[offset]开始解码
+     */
+    <T> T decode(byte[] bytes, int offset, Class<T> type) throws SerializationException;
+
+    default <T> T decode(byte[] bytes, Class<T> type) throws SerializationException {
+        return decode(bytes, 0, type);
+    }
+
+    byte[] encodeList(List<?> values, Class<?> elementType);
+
+    <T> List<T> decodeList(byte[] bytes, Class<T> elementType) throws SerializationException;
+}
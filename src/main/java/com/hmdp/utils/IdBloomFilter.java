@@ -0,0 +1,318 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.thread.ThreadUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 实体id的布隆过滤器，防止缓存穿透
+ *
+ *  每种通过CacheClient按id查询的实体一个过滤器（目前只有shop，其他实体的查询接入缓存时在init中注册），
+ *  位图保存在redis bloom:类型:位数:哈希数 中，
+ *  位数和哈希数由预计数量和误判率计算，写进key里，修改配置后自动建新的过滤器。
+ *  启动时如果redis中的过滤器还没有建好，或者位图已经被淘汰（只剩下建好的标记），扫描数据库写入；
+ *  标记中记录扫描到的最大id，定时同步时补扫更大的id，不经过add写入的实体（比如直接导入数据库的）也能补上；
+ *  导入的id比已扫描的最大id小时，调用 PUT /admin/bloom/{type} 重新扫描整张表。
+ *  新增实体时写入redis并广播，每个实例在本地保存一份位图，判断时不访问redis。广播可能丢失，定时从redis合并一次。
+ *  布隆过滤器的位只会置1，本地位图只做合并不做替换。
+ *  过滤器建好之前不做判断，全部放行
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    public static final String SHOP = "shop";
+
+    //扫描数据库时每批的id数
+    private static final int LOAD_BATCH = 5000;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private CacheProperties cacheProperties;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    //实体类型 -> 过滤器
+    private final Map<String, Filter> filters = new LinkedHashMap<>();
+
+    //缓存key前缀 -> 实体类型
+    private final Map<String, String> cachePrefixes = Collections.singletonMap(CACHE_SHOP_KEY, SHOP);
+
+    private ScheduledExecutorService bloomExecutor;
+
+    private class Filter {
+        final String type;
+        final BaseMapper<?> mapper;
+        final String key;
+        final String readyKey;
+        //位数、哈希函数个数
+        final long bits;
+        final int hashes;
+        //本地位图，与redis位图的位序一致
+        final AtomicLongArray local;
+        volatile boolean ready;
+
+        Filter(String type, BaseMapper<?> mapper) {
+            long n = cacheProperties.getBloomExpectedInsertions();
+            double p = cacheProperties.getBloomFpp();
+            this.type = type;
+            this.mapper = mapper;
+            //m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+            this.bits = Math.max(64, (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2))));
+            this.hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+            this.key = BLOOM_KEY + type + ":" + bits + ":" + hashes;
+            this.readyKey = key + ":ready";
+            this.local = new AtomicLongArray((int) ((bits + 63) / 64));
+        }
+
+        // 双重哈希 h1 + i*h2 得到k个位置
+        long[] positions(Object id) {
+            long[] hash = MurmurHash.hash128(id.toString());
+            long[] positions = new long[hashes];
+            for (int i = 0; i < hashes; i++) {
+                positions[i] = Math.floorMod(hash[0] + i * hash[1], bits);
+            }
+            return positions;
+        }
+
+        boolean mightContain(Object id) {
+            for (long position : positions(id)) {
+                if ((local.get((int) (position >>> 6)) & (1L << (position & 63))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void setLocal(long[] positions) {
+            for (long position : positions) {
+                int i = (int) (position >>> 6);
+                long mask = 1L << (position & 63);
+                long old;
+                do {
+                    old = local.get(i);
+                } while ((old & mask) == 0 && !local.compareAndSet(i, old, old | mask));
+            }
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!cacheProperties.isBloomEnabled()) {
+            return;
+        }
+        filters.put(SHOP, new Filter(SHOP, shopMapper));
+
+        //其他实例新增的id：类型:id
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int i = body.indexOf(':');
+            Filter filter = filters.get(body.substring(0, i));
+            if (filter != null) {
+                filter.setLocal(filter.positions(body.substring(i + 1)));
+            }
+        }, new ChannelTopic(BLOOM_ADD_CHANNEL));
+
+        //启动时在后台建过滤器，不阻塞启动，之后定时从redis合并
+        long interval = cacheProperties.getBloomSyncInterval().toMillis();
+        bloomExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("bloom-filter-", true));
+        bloomExecutor.execute(this::build);
+        bloomExecutor.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 按缓存key前缀判断id是否可能存在，没有对应过滤器的前缀一律返回true
+     */
+    public boolean mightContainKey(String keyPrefix, Object id) {
+        String type = cachePrefixes.get(keyPrefix);
+        return type == null || mightContain(type, id);
+    }
+
+    /**
+     * id是否可能存在，返回false时一定不存在；过滤器还没建好时返回true
+     */
+    public boolean mightContain(String type, Object id) {
+        Filter filter = filters.get(type);
+        return filter == null || !filter.ready || filter.mightContain(id);
+    }
+
+    /**
+     * 新增实体后写入过滤器，并广播给其他实例
+     */
+    public void add(String type, Object id) {
+        Filter filter = filters.get(type);
+        if (filter == null || id == null) {
+            return;
+        }
+        long[] positions = filter.positions(id);
+        filter.setLocal(positions);
+        setBits(filter, positions);
+        redisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, type + ":" + id);
+    }
+
+    private void build() {
+        for (Filter filter : filters.values()) {
+            try {
+                build(filter);
+            } catch (Exception e) {
+                //没建好的过滤器不做判断，下次同步时重试
+                log.error("建立布隆过滤器{}失败", filter.type, e);
+            }
+        }
+    }
+
+    /**
+     * 重新扫描整张表写入过滤器，用于导入了比已扫描的最大id更小的id之后
+     * @return 扫描到的最大id，过滤器不存在时返回null
+     */
+    public Long rebuild(String type) {
+        Filter filter = filters.get(type);
+        if (filter == null) {
+            return null;
+        }
+        long lastId = load(filter, 0);
+        redisTemplate.opsForValue().set(filter.readyKey, String.valueOf(lastId));
+        log.info("布隆过滤器{}已重建，maxId={}", filter.type, lastId);
+        merge(filter);
+        filter.ready = true;
+        return lastId;
+    }
+
+    private void build(Filter filter) {
+        //1 其他实例还没有建好，或者位图被淘汰了只剩下标记，扫描数据库写入redis，多个实例同时写入也没有问题
+        //  标记的值是扫描到的最大id，为0说明表是空的，位图不存在是正常的
+        String ready = redisTemplate.opsForValue().get(filter.readyKey);
+        long readyId = ready == null ? 0 : Long.parseLong(ready);
+        long lastId;
+        if (ready == null || (readyId > 0 && !bitmapExists(filter))) {
+            lastId = load(filter, 0);
+            log.info("布隆过滤器{}已建立，maxId={}, bits={}, hashes={}", filter.type, lastId, filter.bits, filter.hashes);
+        } else {
+            //1.1 已经建好，补扫比标记更大的id
+            lastId = load(filter, readyId);
+        }
+        if (ready == null || lastId != readyId) {
+            redisTemplate.opsForValue().set(filter.readyKey, String.valueOf(lastId));
+        }
+        //2 合并到本地
+        merge(filter);
+        filter.ready = true;
+    }
+
+    // STRLEN bloom:xxx，不存在时为0
+    private boolean bitmapExists(Filter filter) {
+        Long size = redisTemplate.opsForValue().size(filter.key);
+        return size != null && size > 0;
+    }
+
+    // 从fromId之后按id分批扫描 SELECT id FROM tb_xxx WHERE id > ? ORDER BY id LIMIT n，返回扫描到的最大id
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private long load(Filter filter, long fromId) {
+        long lastId = fromId;
+        while (true) {
+            QueryWrapper wrapper = new QueryWrapper<>().select("id").gt("id", lastId)
+                    .orderByAsc("id").last("LIMIT " + LOAD_BATCH);
+            List<Object> ids = filter.mapper.selectObjs(wrapper);
+            if (ids.isEmpty()) {
+                return lastId;
+            }
+            long[][] positions = new long[ids.size()][];
+            for (int i = 0; i < ids.size(); i++) {
+                positions[i] = filter.positions(ids.get(i));
+                filter.setLocal(positions[i]);
+            }
+            setBits(filter, positions);
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+        }
+    }
+
+    // 管道执行 SETBIT bloom:xxx offset 1
+    private void setBits(Filter filter, long[]... positions) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long[] p : positions) {
+                for (long position : p) {
+                    conn.setBit(filter.key, position, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    private void sync() {
+        for (Filter filter : filters.values()) {
+            try {
+                //没建好的重试；建好的检查位图是否被淘汰，补扫新的id，再合并
+                build(filter);
+            } catch (Exception e) {
+                log.error("同步布隆过滤器{}失败", filter.type, e);
+            }
+        }
+    }
+
+    // GET bloom:xxx，redis位图中第i位是第i/8个字节的从高到低第i%8位
+    private void merge(Filter filter) {
+        byte[] bitmap = redisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(filter.key.getBytes(StandardCharsets.UTF_8)));
+        if (bitmap == null) {
+            return;
+        }
+        long[] words = new long[filter.local.length()];
+        for (int b = 0; b < bitmap.length && b < words.length * 8; b++) {
+            int v = bitmap[b] & 0xFF;
+            for (int j = 0; j < 8 && v != 0; j++) {
+                if ((v & (0x80 >>> j)) != 0) {
+                    long position = (long) b * 8 + j;
+                    words[(int) (position >>> 6)] |= 1L << (position & 63);
+                }
+            }
+        }
+        for (int i = 0; i < words.length; i++) {
+            if (words[i] != 0) {
+                long old;
+                do {
+                    old = filter.local.get(i);
+                } while ((old | words[i]) != old && !filter.local.compareAndSet(i, old, old | words[i]));
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (bloomExecutor != null) {
+            bloomExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一id生成器，通过 hmdp.id.mode 选择实现：
+ *  redis：RedisIdWorker，序列号来自redis计数器
+ *  snowflake：SnowflakeIdWorker，本地生成，只在启动和心跳时访问redis
+ *  两种实现的id低32位第31位不同（redis为0，snowflake为1），切换时新旧实例可以共存
+ */
+public interface IdGenerator {
+
+    long nextId(String keyPrefix);
+}
@@ -0,0 +1,162 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单结果通知
+ *
+ *  消费者落库或者转入死信队列后，写入订单状态 seckill:status:订单id（用户id:状态），
+ *  并通过redis pub/sub广播，等待这个订单结果的请求无论在哪个实例上都能立刻返回。
+ *  一批订单只发一条消息，内容为 订单id:用户id:状态,订单id:用户id:状态...
+ */
+@Slf4j
+@Component
+public class OrderStatusNotifier {
+
+    public static final String PENDING = "PENDING";
+    public static final String SUCCESS = "SUCCESS";
+    public static final String FAILED = "FAILED";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    //订单id -> 等待结果的请求
+    private final Map<Long, List<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private static class Waiter {
+        final Long userId;
+        final Consumer<String> callback;
+
+        Waiter(Long userId, Consumer<String> callback) {
+            this.userId = userId;
+            this.callback = callback;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            for (String entry : body.split(",")) {
+                String[] parts = entry.split(":");
+                complete(Long.valueOf(parts[0]), Long.valueOf(parts[1]), parts[2]);
+            }
+        }, new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 订单已落库
+     */
+    public void success(List<VoucherOrder> voucherOrders) {
+        publish(voucherOrders, SUCCESS);
+    }
+
+    /**
+     * 订单处理失败，已转入死信队列
+     */
+    public void failed(List<VoucherOrder> voucherOrders) {
+        publish(voucherOrders, FAILED);
+    }
+
+    private void publish(List<VoucherOrder> voucherOrders, String status) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        long ttl = seckillProperties.getOrderStatusTtl().getSeconds();
+        StringBuilder message = new StringBuilder();
+        for (VoucherOrder order : voucherOrders) {
+            if (message.length() > 0) {
+                message.append(',');
+            }
+            message.append(order.getId()).append(':').append(order.getUserId()).append(':').append(status);
+        }
+        try {
+            //先写状态再广播，收到广播之前开始等待的请求也能从状态中读到结果
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : voucherOrders) {
+                    conn.setEx(SECKILL_ORDER_STATUS_KEY + order.getId(), ttl, order.getUserId() + ":" + status);
+                }
+                conn.publish(SECKILL_ORDER_STATUS_CHANNEL, message.toString());
+                return null;
+            });
+        } catch (Exception e) {
+            //通知失败不影响订单，客户端等待超时后会重新查询
+            log.error("发送订单结果通知失败，status={}, n={}", status, voucherOrders.size(), e);
+        }
+    }
+
+    /**
+     * 查询订单状态
+     * @return 状态，订单不属于该用户时返回null
+     */
+    public String status(Long orderId, Long userId) {
+        String value = redisTemplate.opsForValue().get(SECKILL_ORDER_STATUS_KEY + orderId);
+        if (StrUtil.isBlank(value)) {
+            return PENDING;
+        }
+        String[] parts = value.split(":");
+        return userId.equals(Long.valueOf(parts[0])) ? parts[1] : null;
+    }
+
+    /**
+     * 等待订单结果，订单已经有结果时立刻回调
+     * @param callback 回调参数为订单状态，订单不属于该用户时为null
+     * @return 用于取消等待
+     */
+    public Runnable await(Long orderId, Long userId, Consumer<String> callback) {
+        //先登记再查询状态，避免在两步之间错过广播
+        Waiter waiter = new Waiter(userId, callback);
+        waiters.computeIfAbsent(orderId, id -> new CopyOnWriteArrayList<>()).add(waiter);
+        String status = status(orderId, userId);
+        if (!PENDING.equals(status)) {
+            remove(orderId, waiter);
+            callback.accept(status);
+        }
+        return () -> remove(orderId, waiter);
+    }
+
+    private void complete(Long orderId, Long userId, String status) {
+        List<Waiter> list = waiters.remove(orderId);
+        if (list == null) {
+            return;
+        }
+        for (Waiter waiter : list) {
+            waiter.callback.accept(waiter.userId.equals(userId) ? status : null);
+        }
+    }
+
+    private void remove(Long orderId, Waiter waiter) {
+        waiters.computeIfPresent(orderId, (id, list) -> {
+            list.remove(waiter);
+            return list.isEmpty() ? null : list;
+        });
+    }
+}
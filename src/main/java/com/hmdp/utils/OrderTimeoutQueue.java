@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_TIMEOUT_CURSOR_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_TIMEOUT_KEY;
+
+/**
+ * 未支付订单超时队列
+ *
+ *  保存在redis中的时间轮：每秒一格，seckill:timeout:到期秒数 是一个list，元素为 订单id:优惠券id:用户id。
+ *  下单时seckill.lua在同一个脚本中RPUSH，插入O(1)；到期后按格批量取出（timeout.lua），
+ *  游标 seckill:timeout:cursor 记录已经处理完的最后一格，实例重启或者停机一段时间后从游标继续。
+ *  注意：取出之后、处理完之前实例宕机，这一批订单不会再被取消
+ */
+@Component
+public class OrderTimeoutQueue {
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ScriptRegistry scriptRegistry;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    /**
+     * 现在下单的订单应该放入的时间格，未开启超时取消时返回空串
+     */
+    public String scheduleKey() {
+        if (!seckillProperties.isOrderTimeoutEnabled()) {
+            return "";
+        }
+        return slotKey(currentSecond() + seckillProperties.getOrderTimeout().getSeconds());
+    }
+
+    /**
+     * 延迟delaySeconds秒后再次到期，用于重试
+     */
+    public void schedule(String item, long delaySeconds) {
+        redisTemplate.opsForList().rightPush(slotKey(currentSecond() + delaySeconds), item);
+    }
+
+    /**
+     * 取出一格中最多n个到期的订单
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> pop(long second, int n) {
+        List<String> items = scriptRegistry.execute("timeout.lua", List.class,
+                Arrays.asList(slotKey(second), SECKILL_TIMEOUT_CURSOR_KEY), "pop", String.valueOf(n));
+        return items == null ? Collections.emptyList() : items;
+    }
+
+    /**
+     * 已经处理完的最后一格，第一次运行时从上一秒开始
+     */
+    public long cursor() {
+        String cursor = redisTemplate.opsForValue().get(SECKILL_TIMEOUT_CURSOR_KEY);
+        return cursor == null ? currentSecond() - 1 : Long.parseLong(cursor);
+    }
+
+    /**
+     * 推进游标，其他实例已经推进得更远时不会回退
+     */
+    public void advance(long second) {
+        scriptRegistry.execute("timeout.lua", Long.class,
+                Arrays.asList(slotKey(second), SECKILL_TIMEOUT_CURSOR_KEY), "advance", String.valueOf(second));
+    }
+
+    public long currentSecond() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private String slotKey(long second) {
+        return SECKILL_TIMEOUT_KEY + second;
+    }
+}
@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.RateLimitProperties;
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 秒杀接口限流拦截器，在刷新token的拦截器之后执行
+ * 用户维度按刷新拦截器校验过的登录用户id区分；IP维度使用连接的对端地址，
+ * 只有对端是配置的可信代理时才从X-Forwarded-For中取客户端地址，客户端自己带的请求头不可信
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private RateLimiter rateLimiter;
+
+    private RateLimitProperties rateLimitProperties;
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, RateLimitProperties rateLimitProperties) {
+        this.rateLimiter = rateLimiter;
+        this.rateLimitProperties = rateLimitProperties;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //1 只限制下单请求
+        if (!"POST".equalsIgnoreCase(request.getMethod())) {
+            return true;
+        }
+        //2 获取限流维度：用户id、IP、优惠券id
+        UserDTO userDTO = UserHolder.getUser();
+        String user = userDTO == null ? null : String.valueOf(userDTO.getId());
+        String ip = clientIp(request);
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String voucherId = variables == null ? null : variables.get("id");
+
+        //3 超过限制，返回429状态码
+        if (rateLimiter.tryAcquire(user, ip, voucherId) != null) {
+            response.setStatus(429);
+            return false;
+        }
+        return true;
+    }
+
+    // 对端是可信代理时，从X-Forwarded-For从右往左取第一个不是可信代理的地址
+    private String clientIp(HttpServletRequest request) {
+        String remote = request.getRemoteAddr();
+        List<String> trusted = rateLimitProperties.getTrustedProxies();
+        if (!trusted.contains(remote)) {
+            return remote;
+        }
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (StrUtil.isBlank(forwarded)) {
+            return remote;
+        }
+        String[] hops = forwarded.split(",");
+        for (int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+            if (!hop.isEmpty() && !trusted.contains(hop)) {
+                return hop;
+            }
+        }
+        return remote;
+    }
+}
@@ -0,0 +1,138 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.config.RateLimitProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 秒杀接口限流：本地令牌桶 + 集群滑动窗口
+ *
+ *  先用本实例的令牌桶判断，超过本地速率的请求直接拒绝，不访问redis；
+ *  通过本地限流的请求再用ratelimit.lua做集群滑动窗口判断，多个维度（用户、IP、优惠券）一次脚本调用完成
+ *  被某个维度拒绝时，归还前面维度已经拿到的本地令牌，被限流的用户不会消耗优惠券维度的配额
+ */
+@Component
+public class RateLimiter {
+
+    /**
+     * 限流维度
+     */
+    public enum Dimension {
+        USER, IP, VOUCHER
+    }
+
+    //本地令牌桶，只保留最近活跃的key
+    private static final int LOCAL_CAPACITY = 100000;
+
+    @Autowired
+    private RateLimitProperties rateLimitProperties;
+
+    @Autowired
+    private ScriptRegistry scriptRegistry;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final LRUCache<String, TokenBucket> buckets = CacheUtil.newLRUCache(LOCAL_CAPACITY);
+
+    private static class TokenBucket {
+        final double rate;
+        final double capacity;
+        double tokens;
+        long lastRefill = System.nanoTime();
+
+        TokenBucket(double rate, int capacity) {
+            this.rate = rate;
+            this.capacity = Math.max(capacity, 1);
+            this.tokens = this.capacity;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+    }
+
+    /**
+     * 判断请求是否放行
+     * @param keys 每个维度的key，为null的维度不限流，顺序与Dimension一致
+     * @return 被哪个维度拒绝，放行返回null
+     */
+    public Dimension tryAcquire(String... keys) {
+        Dimension[] dimensions = Dimension.values();
+        //1 本地令牌桶，记下拿到令牌的桶，后面被拒绝时归还
+        List<TokenBucket> acquired = new ArrayList<>(dimensions.length);
+        for (int i = 0; i < dimensions.length; i++) {
+            RateLimitProperties.Rule rule = rule(dimensions[i]);
+            if (keys[i] == null || rule.getLocalRate() <= 0) {
+                continue;
+            }
+            String key = dimensions[i].name() + ":" + keys[i];
+            TokenBucket bucket = buckets.get(key, false, () -> new TokenBucket(rule.getLocalRate(), rule.getLocalBurst()));
+            if (!bucket.tryAcquire()) {
+                acquired.forEach(TokenBucket::refund);
+                return reject(dimensions[i], "local");
+            }
+            acquired.add(bucket);
+        }
+        //2 集群滑动窗口
+        List<String> redisKeys = new ArrayList<>(dimensions.length);
+        List<String> args = new ArrayList<>(dimensions.length * 2 + 1);
+        List<Dimension> checked = new ArrayList<>(dimensions.length);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        for (int i = 0; i < dimensions.length; i++) {
+            RateLimitProperties.Rule rule = rule(dimensions[i]);
+            if (keys[i] == null || rule.getClusterLimit() <= 0) {
+                continue;
+            }
+            redisKeys.add(RATE_LIMIT_KEY + dimensions[i].name().toLowerCase() + ":" + keys[i]);
+            args.add(String.valueOf(rule.getWindow().toMillis()));
+            args.add(String.valueOf(rule.getClusterLimit()));
+            checked.add(dimensions[i]);
+        }
+        if (checked.isEmpty()) {
+            return null;
+        }
+        Long r = scriptRegistry.execute("ratelimit.lua", Long.class, redisKeys, args.toArray(new String[0]));
+        if (r == null || r == 0) {
+            return null;
+        }
+        acquired.forEach(TokenBucket::refund);
+        return reject(checked.get(r.intValue() - 1), "cluster");
+    }
+
+    private Dimension reject(Dimension dimension, String stage) {
+        meterRegistry.counter("seckill.rate.limited",
+                "dimension", dimension.name().toLowerCase(), "stage", stage).increment();
+        return dimension;
+    }
+
+    private RateLimitProperties.Rule rule(Dimension dimension) {
+        switch (dimension) {
+            case USER:
+                return rateLimitProperties.getUser();
+            case IP:
+                return rateLimitProperties.getIp();
+            default:
+                return rateLimitProperties.getVoucher();
+        }
+    }
+}
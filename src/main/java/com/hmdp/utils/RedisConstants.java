@@ -10,6 +10,9 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:channel:invalidate";
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:channel:add";
 
     public static final String SHOUYE_SHOP_KEY = "shouye:shop:";
 
@@ -17,6 +20,23 @@ public class RedisConstants {
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BUCKETS_KEY = "seckill:buckets:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_MEMBERSHIP_KEY = "seckill:membership:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:channel:sold-out";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:channel:restock";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:status:";
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:channel:order-status";
+    public static final String SECKILL_TIMEOUT_KEY = "seckill:timeout:";
+    public static final String SECKILL_TIMEOUT_CURSOR_KEY = "seckill:timeout:cursor";
+    public static final String SECKILL_PARTITIONS_KEY = "seckill:stream:partitions";
+    public static final String SECKILL_REBALANCE_KEY = "seckill:stream:rebalance";
+    public static final String SECKILL_RETIRED_KEY = "seckill:stream:retired";
+    public static final String SECKILL_WORKERS_KEY = "seckill:stream:workers";
+    public static final String SECKILL_ARCHIVED_KEY = "seckill:stream:archived";
+    public static final String RATE_LIMIT_KEY = "limit:";
+    public static final String ID_WORKER_KEY = "id:worker:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,44 +1,215 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 唯一id生成类
+ *
+ *  id = 时间戳(秒) << 32 | 当天的序列号，序列号来自redis的 icr:业务前缀:日期 计数器
+ *  时间戳与SnowflakeIdWorker一样取真实的epoch秒（System.currentTimeMillis），日期按UTC计算，两种模式的id按时间一起排序
+ *  序列号最多31位，第31位留给SnowflakeIdWorker，两种模式的id不会重复
+ *  号段模式：一次INCRBY预留step个序列号，在内存中发号；当前号段用到80%时后台预取下一段（双buffer），
+ *  并根据号段的实际使用时长调整step。实例重启时没发完的号段会被跳过，id不连续但仍然唯一
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
+@ConditionalOnProperty(prefix = "hmdp.id", name = "mode", havingValue = "redis", matchIfMissing = true)
+public class RedisIdWorker implements IdGenerator {
     /**
      * 2022-01-01 0:0:0
      */
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     private static final int COUNT_BITS = 32;
+    private static final long MAX_COUNT = (1L << (COUNT_BITS - 1)) - 1;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
 
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private IdProperties idProperties;
+
+    //业务前缀 -> 号段双buffer
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            ThreadUtil.newNamedThreadFactory("id-segment-", true));
+
+    //当天的日期字符串，跨天时才重新格式化
+    private volatile Day today = new Day(-1, null);
+
+    private static class Day {
+        final long epochDay;
+        final String date;
+
+        Day(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    //一段预留好的序列号 [start, max]
+    private static class Segment {
+        final long epochDay;
+        final long start;
+        final long max;
+        final AtomicLong cursor;
+        final long loadedAt = System.currentTimeMillis();
+
+        Segment(long epochDay, long start, long max) {
+            this.epochDay = epochDay;
+            this.start = start;
+            this.max = max;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    private class SegmentBuffer {
+        final String keyPrefix;
+        volatile Segment current;
+        volatile Segment next;
+        final AtomicBoolean loading = new AtomicBoolean();
+        volatile int step = idProperties.getSegmentStep();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+    }
+
+    @Override
     public long nextId(String keyPrefix){
         //1 生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = System.currentTimeMillis() / 1000;
         long timeStamp = nowSecond - BEGIN_TIMESTAMP;
 
         //2 生成序列号
-        //2.1 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+        //2.1 获取当前日期（UTC），精确到天，与时间戳取自同一个秒数，相同时间戳的id一定用同一个计数器
+        Day day = currentDay(nowSecond / SECONDS_PER_DAY);
 
         //2.2 自增长
-        Long count = redisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-
+        long count = idProperties.isSegmentEnabled()
+                ? nextFromSegment(keyPrefix, day)
+                : redisTemplate.opsForValue().increment(counterKey(keyPrefix, day));
+        if (count > MAX_COUNT) {
+            throw new IllegalStateException("当天的序列号已用完，keyPrefix=" + keyPrefix);
+        }
 
         //3 拼接并返回
-
         return timeStamp << COUNT_BITS | count;
     }
 
+    private Day currentDay(long epochDay) {
+        Day day = today;
+        if (day.epochDay != epochDay) {
+            day = new Day(epochDay, LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER));
+            today = day;
+        }
+        return day;
+    }
+
+    private String counterKey(String keyPrefix, Day day) {
+        return "icr:" + keyPrefix + ":" + day.date;
+    }
+
+    private long nextFromSegment(String keyPrefix, Day day) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            //注意：序列号只在当天唯一，跨天后前一天的号段不能再用
+            if (segment != null && segment.epochDay == day.epochDay) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.max) {
+                    //用到一定比例，后台预取下一段
+                    if (count - segment.start >= (segment.max - segment.start + 1) * idProperties.getSegmentPrefetchRatio()
+                            && buffer.next == null) {
+                        prefetch(buffer, day);
+                    }
+                    return count;
+                }
+            }
+            switchSegment(buffer, segment, day);
+        }
+    }
+
+    //当前号段用完或者跨天，切换到预取的号段，没有预取好则同步加载
+    private void switchSegment(SegmentBuffer buffer, Segment exhausted, Day day) {
+        synchronized (buffer) {
+            if (buffer.current != exhausted) {
+                //其他线程已经切换过了
+                return;
+            }
+            if (exhausted != null) {
+                adjustStep(buffer, exhausted);
+            }
+            Segment next = buffer.next;
+            buffer.next = null;
+            buffer.current = next != null && next.epochDay == day.epochDay ? next : loadSegment(buffer, day);
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, Day day) {
+        if (!buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        prefetchExecutor.execute(() -> {
+            try {
+                if (buffer.next == null) {
+                    buffer.next = loadSegment(buffer, day);
+                }
+            } catch (Exception e) {
+                //预取失败不影响发号，号段用完时会同步加载
+                log.error("预取号段失败，keyPrefix={}", buffer.keyPrefix, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    // INCRBY icr:order:20220101 step
+    private Segment loadSegment(SegmentBuffer buffer, Day day) {
+        int step = buffer.step;
+        Long max = redisTemplate.opsForValue().increment(counterKey(buffer.keyPrefix, day), step);
+        if (max == null) {
+            throw new IllegalStateException("获取号段失败，keyPrefix=" + buffer.keyPrefix);
+        }
+        return new Segment(day.epochDay, max - step + 1, max);
+    }
+
+    //号段用得比期望快，step翻倍；慢两倍以上，step减半
+    private void adjustStep(SegmentBuffer buffer, Segment segment) {
+        long used = System.currentTimeMillis() - segment.loadedAt;
+        long expected = idProperties.getSegmentDuration().toMillis();
+        int step = buffer.step;
+        if (used < expected) {
+            step = Math.min(step * 2, idProperties.getSegmentMaxStep());
+        } else if (used > expected * 2) {
+            step = Math.max(step / 2, idProperties.getSegmentMinStep());
+        }
+        if (step != buffer.step) {
+            log.debug("调整号段长度，keyPrefix={}, step {} -> {}", buffer.keyPrefix, buffer.step, step);
+            buffer.step = step;
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
 }
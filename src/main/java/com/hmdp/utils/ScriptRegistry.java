@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.util.StrUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * lua脚本注册表
+ *
+ *  启动时把classpath下所有 *.lua 用SCRIPT LOAD加载到redis，之后只用EVALSHA按sha调用，请求中不再携带脚本内容。
+ *  redis故障切换或者SCRIPT FLUSH之后会返回NOSCRIPT，此时重新加载脚本并重试一次。
+ *  每个脚本的调用次数和耗时记录在 redis.script{script=xxx.lua} 中
+ */
+@Slf4j
+@Component
+public class ScriptRegistry {
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    //脚本文件名 -> 脚本
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+
+    private class Script {
+        final String name;
+        final byte[] body;
+        volatile String sha;
+        final Timer timer;
+        final Counter reloads;
+
+        Script(String name, byte[] body) {
+            this.name = name;
+            this.body = body;
+            this.timer = Timer.builder("redis.script")
+                    .description("lua脚本调用耗时")
+                    .tag("script", name)
+                    .publishPercentiles(0.5, 0.99)
+                    .register(meterRegistry);
+            this.reloads = Counter.builder("redis.script.reload")
+                    .description("收到NOSCRIPT后重新加载脚本的次数")
+                    .tag("script", name)
+                    .register(meterRegistry);
+        }
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources("classpath*:*.lua");
+        for (Resource resource : resources) {
+            try (InputStream in = resource.getInputStream()) {
+                Script script = new Script(resource.getFilename(), IoUtil.readBytes(in));
+                load(script);
+                scripts.put(script.name, script);
+            }
+        }
+        log.info("已加载lua脚本：{}", scripts.keySet());
+    }
+
+    /**
+     * 按sha执行脚本 EVALSHA sha numkeys key... arg...
+     * @param name 脚本文件名，例如 seckill.lua
+     * @param resultType 返回值类型：Long、Boolean、String、List（其中的字符串转换成String）
+     */
+    public <T> T execute(String name, Class<T> resultType, List<String> keys, String... args) {
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("脚本不存在：" + name);
+        }
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[keys.size() + i] = args[i].getBytes(StandardCharsets.UTF_8);
+        }
+        long begin = System.nanoTime();
+        try {
+            Object result;
+            try {
+                result = evalSha(script, resultType, keys.size(), keysAndArgs);
+            } catch (Exception e) {
+                if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "NOSCRIPT")) {
+                    throw e;
+                }
+                //redis中的脚本缓存丢失了，重新加载后重试
+                log.warn("redis中没有脚本{}，重新加载", name);
+                script.reloads.increment();
+                load(script);
+                result = evalSha(script, resultType, keys.size(), keysAndArgs);
+            }
+            return convert(result, resultType);
+        } finally {
+            script.timer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 检查所有脚本都还在redis中 SCRIPT EXISTS sha...，不在的重新加载
+     * @return 重新加载的脚本数
+     */
+    public int verify() {
+        List<Script> list = new ArrayList<>(scripts.values());
+        String[] shas = list.stream().map(script -> script.sha).toArray(String[]::new);
+        List<Boolean> exists = redisTemplate.execute((RedisCallback<List<Boolean>>) connection ->
+                connection.scriptingCommands().scriptExists(shas));
+        int reloaded = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (exists == null || !Boolean.TRUE.equals(exists.get(i))) {
+                load(list.get(i));
+                list.get(i).reloads.increment();
+                reloaded++;
+            }
+        }
+        return reloaded;
+    }
+
+    private Object evalSha(Script script, Class<?> resultType, int numKeys, byte[][] keysAndArgs) {
+        return redisTemplate.execute((RedisCallback<Object>) connection -> connection.scriptingCommands()
+                .evalSha(script.sha, ReturnType.fromJavaType(resultType), numKeys, keysAndArgs));
+    }
+
+    // SCRIPT LOAD body
+    private void load(Script script) {
+        script.sha = redisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptingCommands().scriptLoad(script.body));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T convert(Object result, Class<T> resultType) {
+        if (result instanceof byte[] && resultType == String.class) {
+            return (T) new String((byte[]) result, StandardCharsets.UTF_8);
+        }
+        //多值返回中的字符串转换成String
+        if (result instanceof List) {
+            List<Object> list = new ArrayList<>(((List<?>) result).size());
+            for (Object item : (List<?>) result) {
+                list.add(item instanceof byte[] ? new String((byte[]) item, StandardCharsets.UTF_8) : item);
+            }
+            return (T) list;
+        }
+        return (T) result;
+    }
+}
@@ -0,0 +1,274 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BUCKETS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀活动预热
+ *
+ *  定时找出preheatAhead之内就要开始的秒杀券，在开始之前：
+ *  1 把秒杀时间窗口和优惠券信息写入redis（seckill:voucher:id），同时保存到本地，
+ *    不在时间窗口内的请求直接在本地拒绝，时间窗口随请求传给seckill.lua，在脚本中再判断一次
+ *  2 检查redis库存，还没开卖时库存key丢失用数据库库存补回（此时数据库库存是准确的），
+ *    已经开卖的只报告未就绪
+ *  3 检查lua脚本都已加载，预先建立redis连接
+ *  已经预热过的券每次定时任务都重新检查：redis中的优惠券信息丢失时用本地保存的信息补回，
+ *  时间窗口被修改时重新加载，库存按第2步再检查一次
+ */
+@Slf4j
+@Component
+public class SeckillPreheater {
+
+    /**
+     * 时间窗口检查结果，与seckill.lua的返回值一致
+     */
+    public static final int IN_WINDOW = 0;
+    public static final int NOT_STARTED = 3;
+    public static final int ENDED = 4;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private VoucherMapper voucherMapper;
+
+    @Autowired
+    private ScriptRegistry scriptRegistry;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    //voucherId -> 秒杀时间窗口和优惠券信息
+    private final Map<Long, VoucherMeta> metas = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService preheatExecutor;
+
+    //预热连接时并发执行PING，不占用公共的ForkJoinPool
+    private ExecutorService pingExecutor;
+
+    /**
+     * 本地保存的秒杀时间窗口（毫秒）和优惠券信息，与redis中 seckill:voucher:id 的字段一致
+     */
+    private static class VoucherMeta {
+        final long begin;
+        final long end;
+        final Map<String, String> fields;
+
+        VoucherMeta(long begin, long end, Map<String, String> fields) {
+            this.begin = begin;
+            this.end = end;
+            this.fields = fields;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        long interval = seckillProperties.getPreheatInterval().toMillis();
+        preheatExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("seckill-preheat-", true));
+        pingExecutor = Executors.newFixedThreadPool(Math.max(1, seckillProperties.getPreheatConnections()),
+                ThreadUtil.newNamedThreadFactory("seckill-preheat-ping-", true));
+        //启动时立刻执行一次，已经在进行中的秒杀也需要加载时间窗口
+        preheatExecutor.scheduleWithFixedDelay(this::preheatUpcoming, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void preheatUpcoming() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", now.plus(seckillProperties.getPreheatAhead()))
+                    .gt("end_time", now)
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    VoucherMeta meta = metas.get(voucher.getVoucherId());
+                    if (meta == null || meta.begin != toMillis(voucher.getBeginTime())
+                            || meta.end != toMillis(voucher.getEndTime())) {
+                        preheat(voucher);
+                    } else {
+                        recheck(voucher, meta);
+                    }
+                } catch (Exception e) {
+                    log.error("秒杀预热异常，voucherId={}", voucher.getVoucherId(), e);
+                }
+            }
+            //清理已经结束的
+            long nowMillis = System.currentTimeMillis();
+            metas.entrySet().removeIf(e -> e.getValue().end < nowMillis);
+        } catch (Exception e) {
+            log.error("秒杀预热异常", e);
+        }
+    }
+
+    /**
+     * 预热一个秒杀券
+     * @return 就绪检查结果
+     */
+    public Map<String, Object> preheat(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("voucherId", voucherId);
+
+        //1 时间窗口和优惠券信息
+        Voucher voucher = voucherMapper.selectById(voucherId);
+        saveWindow(voucherId, seckillVoucher.getBeginTime(), seckillVoucher.getEndTime(), voucher);
+        report.put("beginTime", seckillVoucher.getBeginTime());
+        report.put("endTime", seckillVoucher.getEndTime());
+
+        //2 库存
+        report.put("stockReady", ensureStock(seckillVoucher));
+
+        //3 脚本和连接
+        report.put("scriptsReloaded", scriptRegistry.verify());
+        report.put("pingMicros", warmUpConnections());
+
+        boolean ready = Boolean.TRUE.equals(report.get("stockReady"));
+        report.put("ready", ready);
+        if (ready) {
+            log.info("秒杀预热完成，{}", report);
+        } else {
+            log.warn("秒杀预热未就绪，{}", report);
+        }
+        return report;
+    }
+
+    // 已经预热过的券：redis中的优惠券信息丢失时用本地信息补回 HSET，再检查库存
+    private void recheck(SeckillVoucher seckillVoucher, VoucherMeta meta) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        if (!Boolean.TRUE.equals(redisTemplate.hasKey(SECKILL_VOUCHER_KEY + voucherId))) {
+            redisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucherId, meta.fields);
+            log.warn("redis中没有秒杀券信息，已用本地信息补回，voucherId={}", voucherId);
+        }
+        if (!ensureStock(seckillVoucher)) {
+            log.warn("秒杀库存未就绪，voucherId={}", voucherId);
+        }
+    }
+
+    /**
+     * 写入秒杀时间窗口和优惠券信息 HSET seckill:voucher:id begin .. end .. title ..
+     */
+    public void saveWindow(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, Voucher voucher) {
+        long begin = toMillis(beginTime);
+        long end = toMillis(endTime);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("begin", String.valueOf(begin));
+        fields.put("end", String.valueOf(end));
+        if (voucher != null) {
+            fields.put("shopId", String.valueOf(voucher.getShopId()));
+            fields.put("title", StrUtil.nullToEmpty(voucher.getTitle()));
+            fields.put("payValue", String.valueOf(voucher.getPayValue()));
+            fields.put("actualValue", String.valueOf(voucher.getActualValue()));
+        }
+        redisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucherId, fields);
+        metas.put(voucherId, new VoucherMeta(begin, end, fields));
+    }
+
+    /**
+     * 本地判断是否在秒杀时间内
+     * @return 0：在时间内或者本地没有这个券的信息  3：尚未开始  4：已经结束
+     */
+    public int checkWindow(Long voucherId, long now) {
+        VoucherMeta meta = metas.get(voucherId);
+        if (meta == null) {
+            return IN_WINDOW;
+        }
+        if (now < meta.begin) {
+            return NOT_STARTED;
+        }
+        return now > meta.end ? ENDED : IN_WINDOW;
+    }
+
+    /**
+     * 本地保存的秒杀时间窗口 [begin, end]（毫秒），没有预热过时返回null
+     */
+    public long[] window(Long voucherId) {
+        VoucherMeta meta = metas.get(voucherId);
+        return meta == null ? null : new long[]{meta.begin, meta.end};
+    }
+
+    // 检查redis库存，开卖之前key丢失时用数据库库存补回；
+    // 开卖之后数据库库存落后于redis（延迟扣减时更多），补回会超卖，只报告未就绪
+    private boolean ensureStock(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        String bucketsStr = redisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId);
+        if (StrUtil.isBlank(bucketsStr)) {
+            if (Boolean.TRUE.equals(redisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId))) {
+                return true;
+            }
+            if (!seckillVoucher.getBeginTime().isAfter(LocalDateTime.now())) {
+                log.error("秒杀已经开始，redis中没有库存，不能用数据库库存补回，voucherId={}", voucherId);
+                return false;
+            }
+            Boolean loaded = redisTemplate.opsForValue()
+                    .setIfAbsent(SECKILL_STOCK_KEY + voucherId, seckillVoucher.getStock().toString());
+            if (Boolean.TRUE.equals(loaded)) {
+                log.warn("redis中没有秒杀库存，已从数据库加载，voucherId={}, stock={}", voucherId, seckillVoucher.getStock());
+            }
+            return true;
+        }
+        //分桶的券无法从数据库恢复每个桶的库存，只做检查
+        int buckets = Integer.parseInt(bucketsStr);
+        List<String> keys = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            keys.add(StockBuckets.stockKey(voucherId, i));
+        }
+        List<String> values = redisTemplate.opsForValue().multiGet(keys);
+        return values != null && values.stream().noneMatch(StrUtil::isBlank);
+    }
+
+    // 并发执行PING，让连接池提前建立连接，返回单次PING的耗时（微秒）
+    private long warmUpConnections() {
+        CompletableFuture<?>[] pings = new CompletableFuture<?>[seckillProperties.getPreheatConnections()];
+        for (int i = 0; i < pings.length; i++) {
+            pings[i] = CompletableFuture.runAsync(
+                    () -> redisTemplate.execute((RedisCallback<String>) connection -> connection.ping()), pingExecutor);
+        }
+        CompletableFuture.allOf(pings).join();
+        long begin = System.nanoTime();
+        redisTemplate.execute((RedisCallback<String>) connection -> connection.ping());
+        return (System.nanoTime() - begin) / 1000;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        preheatExecutor.shutdown();
+        pingExecutor.shutdown();
+    }
+}
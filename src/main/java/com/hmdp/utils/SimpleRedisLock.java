@@ -3,9 +3,7 @@ package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -30,17 +28,13 @@ public class SimpleRedisLock implements ILock{
 
     private static final String ID_PREFIX = UUID.randomUUID().toString(true)+"-";
 
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
+    private ScriptRegistry scriptRegistry;
 
 
-    public SimpleRedisLock(String name, StringRedisTemplate redisTemplate) {
+    public SimpleRedisLock(String name, StringRedisTemplate redisTemplate, ScriptRegistry scriptRegistry) {
         this.name = name;
         this.redisTemplate = redisTemplate;
+        this.scriptRegistry = scriptRegistry;
     }
 
     @Override
@@ -61,8 +55,9 @@ public class SimpleRedisLock implements ILock{
     @Override
     public void unlock() {
         //调用lua脚本 保证原子性
-        redisTemplate.execute(
-                UNLOCK_SCRIPT,
+        scriptRegistry.execute(
+                "unlock.lua",
+                Long.class,
                 Collections.singletonList(KEY_PREFIX+name),
                 ID_PREFIX+Thread.currentThread().getId());
 
@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RandomUtil;
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 本地id生成类（snowflake）
+ *
+ *  id = 时间戳(秒) << 32 | 1 << 31 | worker id(10位) << 21 | 序列号(21位)，与RedisIdWorker的 时间戳 << 32 布局一致，
+ *  第31位固定为1，RedisIdWorker的序列号不超过31位，两种模式的id不会重复，切换mode时可以逐台滚动
+ *  worker id：启动时在redis中租一个 id:worker:n（SET NX PX），后台定时心跳续约，续约失败重新租
+ *  时钟回拨：回拨不超过maxRollback时继续使用上一秒的序列号；一秒内序列号用完时借用下一秒，
+ *  借用超过maxRollback则在锁外等待时钟追上
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.id", name = "mode", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+    /**
+     * 2022-01-01 0:0:0
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final int COUNT_BITS = 32;
+    private static final int SEQUENCE_BITS = 21;
+    private static final int WORKER_BITS = 10;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    //区分snowflake和redis模式的标志位
+    private static final long SNOWFLAKE_FLAG = 1L << (COUNT_BITS - 1);
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true);
+
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ScriptRegistry scriptRegistry;
+
+    @Autowired
+    private IdProperties idProperties;
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    private volatile int workerId = -1;
+    //上一次发号的秒数（相对BEGIN_TIMESTAMP），可能因为借用而超前于当前时间
+    private long lastSecond;
+    private long sequence;
+
+    @PostConstruct
+    private void init() {
+        leaseWorkerId();
+        long ttl = idProperties.getWorkerLeaseTtl().toMillis();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("id-worker-", true));
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, ttl / 3, ttl / 3, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        while (true) {
+            long waitSecond;
+            synchronized (this) {
+                //1 生成时间戳
+                long now = currentSecond();
+                //1.1 时钟回拨或者借用了未来的秒数，差距太大时等待时钟追上
+                if (now < lastSecond && lastSecond - now > idProperties.getMaxRollback().getSeconds()) {
+                    waitSecond = lastSecond;
+                } else {
+                    return generate(Math.max(now, lastSecond));
+                }
+            }
+            //1.2 在锁外等待，不阻塞其他线程进入nextId检查时钟，追上后重新生成
+            log.warn("时钟回拨{}秒，等待时钟追上", waitSecond - currentSecond());
+            waitUntil(waitSecond);
+        }
+    }
+
+    private long generate(long now) {
+        //2 生成序列号
+        if (now == lastSecond) {
+            sequence++;
+            //2.1 这一秒的序列号用完了，借用下一秒
+            if (sequence > MAX_SEQUENCE) {
+                now = lastSecond + 1;
+                sequence = 0;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastSecond = now;
+
+        //3 拼接并返回
+        return now << COUNT_BITS | SNOWFLAKE_FLAG | (long) workerId << SEQUENCE_BITS | sequence;
+    }
+
+    public int getWorkerId() {
+        return workerId;
+    }
+
+    private long currentSecond() {
+        return System.currentTimeMillis() / 1000 - BEGIN_TIMESTAMP;
+    }
+
+    private void waitUntil(long second) {
+        while (currentSecond() < second) {
+            ThreadUtil.sleep(100);
+        }
+    }
+
+    // SET id:worker:n 实例标识 NX PX ttl，从随机位置开始找一个空闲的worker id
+    private void leaseWorkerId() {
+        long ttl = idProperties.getWorkerLeaseTtl().toMillis();
+        int start = RandomUtil.randomInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (start + i) % MAX_WORKERS;
+            Boolean success = redisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, ID_PREFIX, ttl, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                synchronized (this) {
+                    workerId = id;
+                }
+                log.info("租到worker id={}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    private void heartbeat() {
+        try {
+            Long renewed = scriptRegistry.execute("renew.lua", Long.class, Collections.singletonList(ID_WORKER_KEY + workerId),
+                    ID_PREFIX, String.valueOf(idProperties.getWorkerLeaseTtl().toMillis()));
+            if (renewed == null || renewed == 0) {
+                //租约已过期（例如长时间GC或与redis断开），可能已被其他实例租走，重新租一个
+                log.warn("worker id={}的租约已失效，重新租", workerId);
+                leaseWorkerId();
+            }
+        } catch (Exception e) {
+            log.error("worker id续约失败", e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdown();
+        }
+        boolean owned = ID_PREFIX.equals(redisTemplate.opsForValue().get(ID_WORKER_KEY + workerId));
+        if (owned) {
+            redisTemplate.delete(ID_WORKER_KEY + workerId);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记
+ *
+ *  秒杀脚本返回库存不足时在本地标记售罄，并通过redis pub/sub广播给所有实例，
+ *  之后的请求直接在本地拒绝，不再访问redis。库存补充时广播清除标记。
+ *  广播可能丢失，所以标记只在soldOutTtl内有效，过期后放一个请求去redis确认
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry {
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    //voucherId -> 标记时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener((message, pattern) ->
+                soldOut.put(parse(message.getBody()), System.currentTimeMillis()),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        listenerContainer.addMessageListener((message, pattern) ->
+                soldOut.remove(parse(message.getBody())),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt > seckillProperties.getSoldOutTtl().toMillis()) {
+            //过期了，放行去redis确认，仍然售罄会重新标记
+            soldOut.remove(voucherId, markedAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.put(voucherId, System.currentTimeMillis()) == null) {
+            redisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+            log.debug("秒杀券已售罄，voucherId={}", voucherId);
+        }
+    }
+
+    /**
+     * 库存补充后清除售罄标记并广播
+     */
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        redisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    private static Long parse(byte[] body) {
+        return Long.valueOf(new String(body, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BUCKETS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_MEMBERSHIP_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存分桶的key规则
+ *
+ *  不分桶：seckill:stock:id、seckill:order:id
+ *  分桶：  seckill:stock:{id:n}、seckill:order:{id:n}，花括号是hash tag，同一个桶的库存和订单在同一个slot，
+ *         不同的桶落在不同的slot（集群下分散到不同的分片）
+ *  用户固定属于 userId % 桶数 这个桶，由调用方选好桶，把这个桶的key通过KEYS传给脚本，脚本只访问这一个桶；
+ *  用户所在的桶没有库存时，seckill.lua在这个桶里占住一人一单的记录，调用方再依次到其他桶扣库存（seckill-bucket.lua）
+ */
+@Component
+public class StockBuckets {
+
+    /**
+     * seckill.lua的返回值：用户所在的桶没有库存，已经占住了一人一单的记录，需要到其他桶扣库存
+     */
+    public static final int BUCKET_EMPTY = 5;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ScriptRegistry scriptRegistry;
+
+    //voucherId -> 分桶方式，创建秒杀券时确定，之后不会修改
+    private final Map<Long, Layout> layouts = new ConcurrentHashMap<>();
+
+    /**
+     * 一个秒杀券的分桶方式
+     */
+    public static class Layout {
+        private final Long voucherId;
+        private final int buckets;
+        private final String membership;
+
+        Layout(Long voucherId, int buckets, String membership) {
+            this.voucherId = voucherId;
+            this.buckets = buckets;
+            this.membership = membership;
+        }
+
+        public int getBuckets() {
+            return buckets;
+        }
+
+        public String getMembership() {
+            return membership;
+        }
+
+        public boolean isBucketed() {
+            return buckets > 1;
+        }
+
+        /**
+         * 用户所在的桶
+         */
+        public int bucketOf(Long userId) {
+            return isBucketed() ? StockBuckets.bucketOf(userId, buckets) : 0;
+        }
+
+        public String stockKey(int bucket) {
+            return isBucketed() ? StockBuckets.stockKey(voucherId, bucket) : SECKILL_STOCK_KEY + voucherId;
+        }
+
+        public String orderKey(int bucket) {
+            return isBucketed() ? StockBuckets.orderKey(voucherId, bucket) : SECKILL_ORDER_KEY + voucherId;
+        }
+    }
+
+    /**
+     * 查询秒杀券的分桶方式，看到库存key之后才缓存，秒杀券还没创建完成时每次都重新查询
+     */
+    public Layout layout(Long voucherId) {
+        Layout layout = layouts.get(voucherId);
+        if (layout != null) {
+            return layout;
+        }
+        //创建秒杀券时依次写入 购买记录存储方式、库存、桶数（分桶时），看到最后一个说明前面的都已经写入
+        List<String> values = redisTemplate.opsForValue().multiGet(Arrays.asList(
+                SECKILL_BUCKETS_KEY + voucherId, SECKILL_MEMBERSHIP_KEY + voucherId, SECKILL_STOCK_KEY + voucherId));
+        String buckets = values == null ? null : values.get(0);
+        String membership = values == null ? null : values.get(1);
+        layout = new Layout(voucherId, StrUtil.isBlank(buckets) ? 1 : Integer.parseInt(buckets),
+                StrUtil.isBlank(membership) ? "set" : membership);
+        if (StrUtil.isNotBlank(buckets) || (values != null && StrUtil.isNotBlank(values.get(2)))) {
+            layouts.put(voucherId, layout);
+        }
+        return layout;
+    }
+
+    /**
+     * 从用户所在的桶中移除购买记录 cancel.lua
+     * @param restock 是否同时归还一个库存到这个桶
+     * @return 1：移除成功  0：用户不在购买记录中（已经归还过了）
+     */
+    public long cancel(Long voucherId, Long userId, boolean restock) {
+        Layout layout = layout(voucherId);
+        int bucket = layout.bucketOf(userId);
+        Long r = scriptRegistry.execute("cancel.lua", Long.class,
+                Arrays.asList(layout.stockKey(bucket), layout.orderKey(bucket)),
+                userId.toString(), String.valueOf(layout.buckets), layout.membership, restock ? "1" : "0");
+        return r == null ? 0 : r;
+    }
+
+    public static String stockKey(Long voucherId, int bucket) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    public static String orderKey(Long voucherId, int bucket) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 用户所在的桶
+     */
+    public static int bucketOf(Long userId, int buckets) {
+        return (int) (userId % buckets);
+    }
+
+    /**
+     * 把库存平均分到每个桶，余数分给前面的桶
+     */
+    public static int[] split(int stock, int buckets) {
+        int[] result = new int[buckets];
+        for (int i = 0; i < buckets; i++) {
+            result[i] = stock / buckets + (i < stock % buckets ? 1 : 0);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,196 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 节点本地库存租约
+ *
+ *  每个实例一次从redis库存中租出一批（leaseChunk），之后在本地用原子计数判断是否还有库存，
+ *  秒杀请求只需要到redis做一人一单的判断；本地库存用完再去redis租下一批。
+ *  租约超过有效期或者实例停机时，没卖完的库存归还redis。
+ *  注意：实例宕机时租出未卖的库存无法归还，会少卖，需要通过库存检查发现后人工补回
+ */
+@Slf4j
+@Component
+public class StockLeaseManager {
+
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ScriptRegistry scriptRegistry;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    @Autowired
+    private SoldOutRegistry soldOutRegistry;
+
+    @Autowired
+    private StockBuckets stockBuckets;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService expireExecutor;
+
+    private static class Lease {
+        //本地剩余库存
+        final AtomicInteger remaining = new AtomicInteger();
+        //最近一次租库存的时间
+        volatile long leasedAt;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!seckillProperties.isLeaseEnabled()) {
+            return;
+        }
+        long ttl = seckillProperties.getLeaseTtl().toMillis();
+        expireExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("stock-lease-", true));
+        expireExecutor.scheduleWithFixedDelay(this::returnExpired, ttl, ttl / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 从本地租约中拿一个库存，本地没有了就去redis租下一批
+     * 注意：先看本地库存再看售罄标记，其他实例广播售罄时本实例可能还有租到的库存
+     * @return false：redis中也没有库存了
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        if (decrement(lease.remaining)) {
+            return true;
+        }
+        //同一个券同一时刻只让一个线程去redis租，其他线程等待后直接用租到的库存
+        synchronized (lease) {
+            if (decrement(lease.remaining)) {
+                return true;
+            }
+            if (soldOutRegistry.isSoldOut(voucherId)) {
+                return false;
+            }
+            int granted = acquireFromRedis(voucherId, seckillProperties.getLeaseChunk());
+            if (granted <= 0) {
+                soldOutRegistry.markSoldOut(voucherId);
+                return false;
+            }
+            lease.leasedAt = System.currentTimeMillis();
+            //自己拿走一个，剩下的放入本地
+            lease.remaining.addAndGet(granted - 1);
+            return true;
+        }
+    }
+
+    // 分桶的券从随机一个桶开始依次租，每次调用只访问一个桶，不足n个时有多少租多少
+    private int acquireFromRedis(Long voucherId, int n) {
+        StockBuckets.Layout layout = stockBuckets.layout(voucherId);
+        int buckets = layout.getBuckets();
+        int start = ThreadLocalRandom.current().nextInt(buckets);
+        int granted = 0;
+        for (int i = 0; i < buckets && granted < n; i++) {
+            try {
+                Long r = scriptRegistry.execute("lease.lua", Long.class,
+                        Collections.singletonList(layout.stockKey((start + i) % buckets)),
+                        "acquire", String.valueOf(n - granted));
+                granted += r == null ? 0 : r.intValue();
+            } catch (RuntimeException e) {
+                //前面的桶已经租到的库存不能丢，先用着
+                if (granted == 0) {
+                    throw e;
+                }
+                log.error("租库存失败，voucherId={}, granted={}", voucherId, granted, e);
+                break;
+            }
+        }
+        return granted;
+    }
+
+    /**
+     * 拿到库存之后没有下单成功（例如重复下单），归还到本地
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.incrementAndGet();
+        }
+    }
+
+    //只在剩余库存大于0时扣减，避免并发时出现负数
+    private boolean decrement(AtomicInteger remaining) {
+        int n;
+        do {
+            n = remaining.get();
+            if (n <= 0) {
+                return false;
+            }
+        } while (!remaining.compareAndSet(n, n - 1));
+        return true;
+    }
+
+    //把本地剩余库存全部取出
+    private int drain(AtomicInteger remaining) {
+        int n;
+        do {
+            n = remaining.get();
+            if (n <= 0) {
+                return 0;
+            }
+        } while (!remaining.compareAndSet(n, 0));
+        return n;
+    }
+
+    private void returnExpired() {
+        long expireAt = System.currentTimeMillis() - seckillProperties.getLeaseTtl().toMillis();
+        leases.forEach((voucherId, lease) -> {
+            if (lease.leasedAt < expireAt) {
+                returnLease(voucherId, lease);
+            }
+        });
+    }
+
+    private void returnLease(Long voucherId, Lease lease) {
+        int n = drain(lease.remaining);
+        if (n <= 0) {
+            return;
+        }
+        try {
+            //归还到第一个桶
+            scriptRegistry.execute("lease.lua", Long.class,
+                    Collections.singletonList(stockBuckets.layout(voucherId).stockKey(0)),
+                    "return", String.valueOf(n));
+            //redis中又有库存了
+            soldOutRegistry.reset(voucherId);
+            log.debug("归还租约库存，voucherId={}, n={}", voucherId, n);
+        } catch (Exception e) {
+            //归还失败放回本地，下次再试
+            lease.remaining.addAndGet(n);
+            log.error("归还租约库存失败，voucherId={}, n={}", voucherId, n, e);
+        }
+    }
+
+    //停机时归还所有没卖完的库存
+    @PreDestroy
+    private void destroy() {
+        if (expireExecutor != null) {
+            expireExecutor.shutdown();
+        }
+        leases.forEach(this::returnLease);
+    }
+}
@@ -0,0 +1,102 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据库库存对账
+ *
+ *  定时检查进行中（以及结束不久）的秒杀券：数据库库存 应该等于 发放总量 - 已落库的有效订单数，
+ *  差值（drift）记录在 seckill.stock.drift{voucherId=xxx} 中。
+ *  其他实例还没刷新的扣减也会表现为drift，所以连续两次对账都不一致才打印告警
+ */
+@Slf4j
+@Component
+public class StockReconciler {
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Autowired
+    private StockWriteBehind stockWriteBehind;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    //voucherId -> 最近一次对账的drift
+    private final Map<Long, AtomicLong> drifts = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService reconcileExecutor;
+
+    @PostConstruct
+    private void init() {
+        long interval = seckillProperties.getReconcileInterval().toMillis();
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("stock-reconcile-", true));
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcileAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconcileAll() {
+        try {
+            //先刷新本实例的扣减，减少误报
+            stockWriteBehind.flush();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("end_time", LocalDateTime.now().minus(seckillProperties.getReconcileWindow()))
+                    .gt("total_stock", 0)
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                reconcile(voucher);
+            }
+        } catch (Exception e) {
+            log.error("库存对账异常", e);
+        }
+    }
+
+    /**
+     * 对账一个秒杀券
+     * @return drift = 数据库库存 - (发放总量 - 有效订单数)，大于0说明少扣，小于0说明多扣
+     */
+    public long reconcile(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        long orders = voucherOrderMapper.countValidOrders(voucherId);
+        long drift = voucher.getStock() - (voucher.getTotalStock() - orders);
+        AtomicLong last = drifts.computeIfAbsent(voucherId, id ->
+                meterRegistry.gauge("seckill.stock.drift", Tags.of("voucherId", id.toString()), new AtomicLong()));
+        if (drift != 0 && last.get() == drift) {
+            log.warn("秒杀库存对账不一致，voucherId={}, total={}, orders={}, db={}, drift={}",
+                    voucherId, voucher.getTotalStock(), orders, voucher.getStock(), drift);
+        }
+        last.set(drift);
+        return drift;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconcileExecutor.shutdown();
+    }
+}
@@ -0,0 +1,171 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据库库存延迟扣减（write-behind）
+ *
+ *  订单落库的事务提交后，只在内存中累加每个优惠券要扣的库存，
+ *  每隔flushInterval或者累计flushOrders单，对每个优惠券执行一次 set stock = stock - n，
+ *  避免热点券的每一批订单都去争抢 tb_seckill_voucher 同一行的行锁。
+ *  数据库库存不够扣时只扣掉还有的部分，剩下的继续挂起并报警（seckill.stock.flush.failed）。
+ *  注意：实例宕机时还没刷新的扣减会丢失，由StockReconciler发现并报告
+ */
+@Slf4j
+@Component
+public class StockWriteBehind {
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    //voucherId -> 还没刷新到数据库的扣减数
+    private final Map<Long, AtomicLong> pending = new ConcurrentHashMap<>();
+    private final AtomicLong pendingOrders = new AtomicLong();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    private ScheduledExecutorService flushExecutor;
+    private Counter flushFailedCounter;
+
+    @PostConstruct
+    private void init() {
+        flushFailedCounter = meterRegistry.counter("seckill.stock.flush.failed");
+        meterRegistry.gauge("seckill.stock.flush.pending", pendingOrders);
+        if (!seckillProperties.isStockWriteBehind()) {
+            return;
+        }
+        long interval = seckillProperties.getStockFlushInterval().toMillis();
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("stock-flush-", true));
+        flushExecutor.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录要扣减的库存，在当前事务提交之后才生效，事务回滚则丢弃
+     * @param countByVoucher voucherId -> 扣减数
+     */
+    public void deduct(Map<Long, Long> countByVoucher) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            accumulate(countByVoucher);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                accumulate(countByVoucher);
+            }
+        });
+    }
+
+    private void accumulate(Map<Long, Long> countByVoucher) {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : countByVoucher.entrySet()) {
+            pending.computeIfAbsent(entry.getKey(), id -> new AtomicLong()).addAndGet(entry.getValue());
+            total += entry.getValue();
+        }
+        //累计的单数够多，提前刷新
+        if (pendingOrders.addAndGet(total) >= seckillProperties.getStockFlushOrders() && flushExecutor != null) {
+            flushExecutor.execute(this::flush);
+        }
+    }
+
+    /**
+     * 把累计的扣减刷新到数据库，每个优惠券一条UPDATE
+     */
+    public void flush() {
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            //按voucherId顺序更新，避免多个实例之间行锁死锁
+            Map<Long, Long> batch = new TreeMap<>();
+            pending.forEach((voucherId, n) -> {
+                long count = n.getAndSet(0);
+                if (count > 0) {
+                    batch.put(voucherId, count);
+                }
+            });
+            batch.forEach(this::flushOne);
+        } finally {
+            flushing.set(false);
+        }
+    }
+
+    private void flushOne(Long voucherId, Long n) {
+        try {
+            long applied = n;
+            if (!deductStock(voucherId, n)) {
+                //订单已经落库，数据库库存却不够扣：先扣掉数据库还有的部分，
+                //剩下的继续挂起，补库存之后再扣，不能丢弃，同时报警人工处理
+                SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+                long stock = seckillVoucher == null ? 0 : Math.max(0, seckillVoucher.getStock());
+                applied = Math.min(n, stock);
+                if (applied > 0 && !deductStock(voucherId, applied)) {
+                    //并发修改了库存，下次再试
+                    applied = 0;
+                }
+                pending.computeIfAbsent(voucherId, id -> new AtomicLong()).addAndGet(n - applied);
+                flushFailedCounter.increment();
+                log.error("数据库库存不足，扣减失败，voucherId={}, n={}, 已扣减={}, 继续挂起={}",
+                        voucherId, n, applied, n - applied);
+            }
+            pendingOrders.addAndGet(-applied);
+        } catch (Exception e) {
+            //数据库异常，放回去下次再刷
+            pending.computeIfAbsent(voucherId, id -> new AtomicLong()).addAndGet(n);
+            log.error("刷新库存扣减失败，voucherId={}, n={}", voucherId, n, e);
+        }
+    }
+
+    // UPDATE tb_seckill_voucher SET stock = stock - n WHERE voucher_id = ? AND stock >= n
+    private boolean deductStock(Long voucherId, long n) {
+        return seckillVoucherService.update()
+                .setSql("stock = stock - " + n)
+                .eq("voucher_id", voucherId)
+                .ge("stock", n)
+                .update();
+    }
+
+    /**
+     * 本实例还没刷新的扣减数
+     */
+    public long pending(Long voucherId) {
+        AtomicLong n = pending.get(voucherId);
+        return n == null ? 0 : n.get();
+    }
+
+    //停机时刷新所有扣减
+    @PreDestroy
+    private void destroy() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,238 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 订单消息队列分区管理
+ *
+ *  分区：seckill.lua按 voucherId % 分区数 选择 stream.orders:分区号，分区数保存在redis中
+ *  分配：每个消费线程定时心跳，按 分区数 / 存活线程数 计算自己最多持有几个分区，
+ *       用分布式锁保证同一时刻一个分区只有一个线程消费，从而保证同一个优惠券的订单有序
+ *  调整：分区数以redis为准，配置只在第一次初始化时写入；由管理接口调用rebalance发起调整，
+ *       rebalance.lua记录旧分区的栅栏后切换分区数，旧分区栅栏之前的消息全部消费完并确认（drain）
+ *       之后，才开始消费栅栏之后的消息
+ */
+@Slf4j
+@Component
+public class StreamPartitionManager {
+
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private ScriptRegistry scriptRegistry;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    @PostConstruct
+    private void init() {
+        //1 第一个启动的实例写入分区数
+        int partitions = seckillProperties.getPartitions();
+        redisTemplate.opsForValue().setIfAbsent(SECKILL_PARTITIONS_KEY, String.valueOf(partitions));
+        //2 之后以redis为准，滚动发布时新旧配置的实例共存，不能由启动触发调整
+        int current = partitionCount();
+        if (current != partitions) {
+            log.warn("配置的订单队列分区数{}与redis中的{}不一致，以redis为准，调整请调用分区调整接口", partitions, current);
+        }
+        createGroups();
+    }
+
+    /**
+     * 调整分区数：记录旧分区的栅栏并切换，之后由消费者完成drain
+     * @return 是否发起成功，上一次调整还未完成时返回false
+     */
+    public boolean rebalance(int partitions) {
+        Long old = scriptRegistry.execute("rebalance.lua", Long.class, Collections.emptyList(),
+                seckillProperties.getStreamKey(), String.valueOf(partitions));
+        if (old == null || old < 0) {
+            log.warn("上一次分区调整还未完成，忽略本次调整，partitions={}", partitions);
+            return false;
+        }
+        createGroups();
+        log.info("订单队列分区数调整 {} -> {}", old, partitions);
+        return true;
+    }
+
+    public int partitionCount() {
+        String partitions = redisTemplate.opsForValue().get(SECKILL_PARTITIONS_KEY);
+        return StrUtil.isBlank(partitions) ? 1 : Integer.parseInt(partitions);
+    }
+
+    /**
+     * 当前分区对应的stream key，与seckill.lua的规则一致
+     */
+    public List<String> partitionKeys() {
+        int partitions = partitionCount();
+        String streamKey = seckillProperties.getStreamKey();
+        if (partitions <= 1) {
+            return Collections.singletonList(streamKey);
+        }
+        List<String> keys = new ArrayList<>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            keys.add(streamKey + ":" + p);
+        }
+        return keys;
+    }
+
+    /**
+     * 正在drain的旧分区及其栅栏，为空说明没有进行中的调整
+     */
+    public Map<String, RecordId> fences() {
+        Map<Object, Object> entries = redisTemplate.opsForHash().entries(SECKILL_REBALANCE_KEY);
+        Map<String, RecordId> fences = new HashMap<>(entries.size());
+        entries.forEach((k, v) -> fences.put(k.toString(), RecordId.of(v.toString())));
+        return fences;
+    }
+
+    /**
+     * 旧分区中栅栏之前、还没有确认的消息 XPENDING stream.orders:n g1 - fence 1
+     */
+    public boolean hasPendingBefore(String key, RecordId fence) {
+        PendingMessages pending = redisTemplate.opsForStream().pending(key, seckillProperties.getGroup(),
+                Range.leftUnbounded(Range.Bound.inclusive(fence.getValue())), 1L);
+        return pending != null && !pending.isEmpty();
+    }
+
+    /**
+     * 旧分区栅栏之前的消息已经全部投递并确认，所有旧分区drain完成后调整结束
+     */
+    public void markDrained(String key) {
+        redisTemplate.opsForHash().delete(SECKILL_REBALANCE_KEY, key);
+        log.info("订单队列分区{}已经drain完成", key);
+    }
+
+    /**
+     * 调整后不再使用的旧分区
+     */
+    public Set<String> retiredKeys() {
+        Set<String> members = redisTemplate.opsForSet().members(SECKILL_RETIRED_KEY);
+        return members == null ? Collections.emptySet() : members;
+    }
+
+    /**
+     * 退役分区的消息全部处理完成后删除
+     */
+    public void removeRetired(String key) {
+        redisTemplate.delete(key);
+        redisTemplate.opsForSet().remove(SECKILL_RETIRED_KEY, key);
+        log.info("订单队列分区{}已退役", key);
+    }
+
+    /**
+     * 消费者需要覆盖的分区：当前分区 + 正在drain的旧分区
+     */
+    public List<String> consumingKeys(Map<String, RecordId> fences) {
+        Set<String> keys = new LinkedHashSet<>(partitionKeys());
+        keys.addAll(fences.keySet());
+        return new ArrayList<>(keys);
+    }
+
+    /**
+     * 重新计算当前线程持有的分区：心跳，释放多余的分区，抢占空闲的分区
+     * 注意：分区锁是redisson的可重入锁，与线程绑定，必须在消费线程中调用
+     *
+     * @param worker 消费者名称
+     * @param owned 当前线程已持有的分区，会被原地修改
+     * @param pinned 不能释放的分区（例如还有暂存消息的分区）
+     * @param keys 需要覆盖的全部分区
+     */
+    public void refreshOwnership(String worker, Set<String> owned, Set<String> pinned, List<String> keys) {
+        //1 心跳，并清理掉线的消费者
+        long now = System.currentTimeMillis();
+        long expire = seckillProperties.getPartitionRefresh().toMillis() * 3;
+        redisTemplate.opsForZSet().add(SECKILL_WORKERS_KEY, worker, now);
+        redisTemplate.opsForZSet().removeRangeByScore(SECKILL_WORKERS_KEY, 0, now - expire);
+        Long workers = redisTemplate.opsForZSet().zCard(SECKILL_WORKERS_KEY);
+        int quota = (int) Math.ceil(keys.size() / (double) Math.max(workers == null ? 1 : workers, 1));
+
+        //2 释放不再需要的分区、超过配额的分区
+        for (String key : new ArrayList<>(owned)) {
+            if (pinned.contains(key)) {
+                continue;
+            }
+            if (!keys.contains(key) || owned.size() > quota) {
+                release(key);
+                owned.remove(key);
+            }
+        }
+
+        //3 从不同的起点开始抢占空闲分区，避免所有线程都去抢第一个分区
+        int start = Math.floorMod(worker.hashCode(), Math.max(keys.size(), 1));
+        for (int i = 0; i < keys.size() && owned.size() < quota; i++) {
+            String key = keys.get((start + i) % keys.size());
+            if (!owned.contains(key) && redissonClient.getLock("lock:" + key).tryLock()) {
+                owned.add(key);
+            }
+        }
+    }
+
+    public void release(String key) {
+        RLock lock = redissonClient.getLock("lock:" + key);
+        if (lock.isHeldByCurrentThread()) {
+            lock.unlock();
+        }
+    }
+
+    public void unregister(String worker) {
+        redisTemplate.opsForZSet().remove(SECKILL_WORKERS_KEY, worker);
+    }
+
+    /**
+     * 为所有分区创建消费者组 XGROUP CREATE stream.orders:n g1 0 MKSTREAM
+     */
+    public void createGroups() {
+        for (String key : partitionKeys()) {
+            createGroupIfAbsent(key, seckillProperties.getGroup());
+        }
+    }
+
+    private void createGroupIfAbsent(String key, String group) {
+        try {
+            redisTemplate.execute((RedisCallback<String>) connection -> connection.xGroupCreate(
+                    key.getBytes(StandardCharsets.UTF_8), group, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //消费者组已存在
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 比较两个消息id，id格式为 毫秒时间戳-序号
+     */
+    public static int compare(RecordId a, RecordId b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return c != 0 ? c : Long.compare(a.getSequence(), b.getSequence());
+    }
+}
@@ -0,0 +1,224 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.date.DatePattern;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.SeckillProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ARCHIVED_KEY;
+
+/**
+ * 订单消息队列裁剪
+ *
+ *  XADD时没有限制长度，已经确认的消息会一直留在redis中。这里定时计算每个分区可以安全删除的位置：
+ *  消费者组最后投递的id 和 pending-list中最早的id 中较小的一个，之前的消息都已经确认，
+ *  用 XTRIM key MINID ~ id 近似裁剪（需要redis 6.2）。
+ *  开启归档时，裁剪之前先把这些消息追加到本地gzip文件 归档目录/stream.orders-yyyyMMdd.jsonl.gz，
+ *  归档进度保存在 seckill:stream:archived 中，同一时刻只有一个实例裁剪同一个分区
+ */
+@Slf4j
+@Component
+public class StreamTrimmer {
+
+    private static final int ARCHIVE_PAGE_SIZE = 1000;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedissonClient redissonClient;
+
+    @Autowired
+    private StreamPartitionManager partitionManager;
+
+    @Autowired
+    private SeckillProperties seckillProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ScheduledExecutorService trimExecutor;
+    private Counter trimmedCounter;
+    private Counter archivedCounter;
+
+    @PostConstruct
+    private void init() {
+        trimmedCounter = meterRegistry.counter("seckill.stream.trimmed");
+        archivedCounter = meterRegistry.counter("seckill.stream.archived");
+        if (!seckillProperties.isTrimEnabled()) {
+            return;
+        }
+        long interval = seckillProperties.getTrimInterval().toMillis();
+        trimExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadUtil.newNamedThreadFactory("stream-trim-", true));
+        trimExecutor.scheduleWithFixedDelay(this::trimAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void trimAll() {
+        for (String key : partitionManager.partitionKeys()) {
+            RLock lock = redissonClient.getLock("lock:trim:" + key);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                trim(key);
+            } catch (Exception e) {
+                log.error("裁剪订单队列异常，key={}", key, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 裁剪一个分区中已经确认的消息
+     * @return 删除的消息数
+     */
+    public long trim(String key) {
+        //1 计算可以安全删除的位置
+        RecordId minId = safeMinId(key);
+        if (minId == null) {
+            return 0;
+        }
+        //2 先归档
+        if (seckillProperties.isArchiveEnabled()) {
+            archive(key, minId);
+        }
+        //3 XTRIM key MINID ~ id，近似裁剪只删除整个宏节点，开销更小
+        Long trimmed = redisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute("XTRIM",
+                bytes(key), bytes("MINID"), bytes("~"), bytes(minId.getValue())));
+        if (trimmed != null && trimmed > 0) {
+            trimmedCounter.increment(trimmed);
+            log.debug("裁剪订单队列，key={}, minId={}, n={}", key, minId, trimmed);
+        }
+        return trimmed == null ? 0 : trimmed;
+    }
+
+    // min(消费者组最后投递的id, pending-list中最早的id)，之前的消息都已经确认
+    private RecordId safeMinId(String key) {
+        String group = seckillProperties.getGroup();
+        StreamInfo.XInfoGroups groups;
+        try {
+            groups = redisTemplate.opsForStream().groups(key);
+        } catch (Exception e) {
+            //分区还不存在
+            if (StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "no such key")) {
+                return null;
+            }
+            throw e;
+        }
+        StreamInfo.XInfoGroup info = groups.stream()
+                .filter(g -> group.equals(g.groupName()))
+                .findFirst().orElse(null);
+        if (info == null) {
+            return null;
+        }
+        RecordId minId = RecordId.of(info.lastDeliveredId());
+        if (minId.getTimestamp() == 0 && minId.getSequence() == 0) {
+            //还没有投递过消息
+            return null;
+        }
+        PendingMessagesSummary pending = redisTemplate.opsForStream().pending(key, group);
+        if (pending != null && pending.getTotalPendingMessages() > 0) {
+            RecordId oldest = RecordId.of(pending.minMessageId());
+            if (StreamPartitionManager.compare(oldest, minId) < 0) {
+                minId = oldest;
+            }
+        }
+        return minId;
+    }
+
+    // 把 (上次归档的位置, minId) 之间的消息追加到当天的归档文件中
+    private void archive(String key, RecordId minId) {
+        Object archived = redisTemplate.opsForHash().get(SECKILL_ARCHIVED_KEY, key);
+        String start = archived == null ? "-" : archived.toString();
+        File file = FileUtil.file(seckillProperties.getArchiveDir(),
+                key + "-" + LocalDate.now().format(DatePattern.PURE_DATE_FORMATTER) + ".jsonl.gz");
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = redisTemplate.opsForStream()
+                    .range(key, Range.closed(start, minId.getValue()), RedisZSetCommands.Limit.limit().count(ARCHIVE_PAGE_SIZE + 1));
+            if (records == null) {
+                return;
+            }
+            List<String> lines = new ArrayList<>(records.size());
+            String last = null;
+            for (MapRecord<String, Object, Object> record : records) {
+                //起点是上次归档的最后一条，已经写过了；minId本身还没有确认
+                if (record.getId().getValue().equals(start) || record.getId().equals(minId)) {
+                    continue;
+                }
+                Map<Object, Object> line = new LinkedHashMap<>();
+                line.put("streamId", record.getId().getValue());
+                line.putAll(record.getValue());
+                lines.add(JSONUtil.toJsonStr(line));
+                last = record.getId().getValue();
+            }
+            //没有新消息时不打开文件，避免每次裁剪都追加一个空的gzip成员
+            if (last == null) {
+                return;
+            }
+            FileUtil.mkParentDirs(file);
+            //每一页追加为一个独立的gzip成员，多个成员拼接起来仍然是合法的gzip文件
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(new FileOutputStream(file, true)), StandardCharsets.UTF_8))) {
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("归档订单队列失败，file=" + file, e);
+            }
+            archivedCounter.increment(lines.size());
+            //写入文件之后再推进归档进度，宕机时最多重复归档一页
+            redisTemplate.opsForHash().put(SECKILL_ARCHIVED_KEY, key, last);
+            start = last;
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (trimExecutor != null) {
+            trimExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+-- 取消超时订单后归还redis库存，并把用户从订单集合中移除，用户可以再次下单
+-- 1 参数列表
+-- 1.1 KEYS[1] 用户所在的桶的库存key，KEYS[2] 同一个桶的订单key，由调用方按 userId % 桶数 选择
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+-- 1.2 用户id
+local userId = ARGV[1]
+-- 1.3 桶数
+local buckets = tonumber(ARGV[2])
+-- 1.4 购买记录的存储方式
+local membership = ARGV[3]
+-- 1.5 是否归还库存，为0时只移除购买记录（撤销seckill.lua占住的记录）
+local restock = ARGV[4] ~= '0'
+
+-- 从购买记录中移除用户，与seckill.lua的存储方式一致
+local function removeMember(key, membership, userId)
+    if (membership == 'bitmap') then
+        return redis.call('setbit', key, userId, 0) == 1
+    elseif (membership == 'roaring') then
+        local chunk = key .. ':r:' .. math.floor(userId / 4096)
+        local low = userId % 4096
+        local t = redis.call('type', chunk).ok
+        if (t == 'set') then
+            return redis.call('srem', chunk, low) == 1
+        elseif (t == 'string') then
+            return redis.call('setbit', chunk, low, 0) == 1
+        end
+        return false
+    end
+    return redis.call('srem', key, userId) == 1
+end
+
+-- 2 分桶的券按桶内序号保存
+local member = userId
+if (membership ~= 'set') then
+    member = math.floor(tonumber(userId) / buckets)
+end
+
+-- 3 脚本业务
+-- 3.1 用户不在订单集合中说明已经归还过了
+if (not removeMember(orderKey, membership, member)) then
+    return 0
+end
+-- 3.2 归还库存
+if (restock) then
+    redis.call('incrby', stockKey, 1)
+end
+return 1
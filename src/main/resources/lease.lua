@@ -0,0 +1,23 @@
+-- 节点本地库存租约：一次从一个库存桶中租出一批，或者把没卖完的归还
+-- 1 参数列表
+-- 1.1 KEYS[1] 库存key，分桶的券由调用方依次传入每个桶
+local stockKey = KEYS[1]
+-- 1.2 操作 acquire：租出  return：归还
+local op = ARGV[1]
+-- 1.3 数量
+local n = tonumber(ARGV[2])
+
+-- 2 脚本业务
+-- 2.1 归还库存
+if (op == 'return') then
+    redis.call('incrby', stockKey, n)
+    return n
+end
+-- 2.2 租出库存，不足n个时有多少租多少，返回实际租到的数量
+local stock = tonumber(redis.call('get', stockKey) or '0')
+if (stock <= 0) then
+    return 0
+end
+local granted = math.min(stock, n)
+redis.call('incrby', stockKey, -granted)
+return granted
@@ -0,0 +1,28 @@
+-- 集群滑动窗口限流：用当前窗口和上一个窗口的计数近似滑动窗口，每个维度只占两个计数器
+-- KEYS[i] 限流维度的key，例如 limit:user:xxx
+-- ARGV[1] 当前毫秒时间戳，ARGV[2*i] 第i个维度的窗口长度(毫秒)，ARGV[2*i+1] 第i个维度的上限
+local now = tonumber(ARGV[1])
+
+-- 1 所有维度都没超限才计数，返回0；否则返回超限维度的序号
+local counters = {}
+for i, key in ipairs(KEYS) do
+    local window = tonumber(ARGV[2 * i])
+    local limit = tonumber(ARGV[2 * i + 1])
+    local index = math.floor(now / window)
+    local current = key .. ':' .. index
+    local previous = tonumber(redis.call('get', key .. ':' .. (index - 1)) or '0')
+    local count = tonumber(redis.call('get', current) or '0')
+    -- 1.1 上一个窗口按还在滑动窗口内的比例计入
+    local elapsed = (now % window) / window
+    if (previous * (1 - elapsed) + count >= limit) then
+        return i
+    end
+    counters[i] = { current, window }
+end
+
+-- 2 计数，计数器保留两个窗口
+for _, counter in ipairs(counters) do
+    redis.call('incr', counter[1])
+    redis.call('pexpire', counter[1], counter[2] * 2)
+end
+return 0
@@ -0,0 +1,48 @@
+-- 订单队列分区数调整：记录每个旧分区当前的最后一条消息id作为栅栏，然后切换分区数
+-- 切换之后新订单立即进入新分区，消费者先把旧分区中栅栏之前的消息消费完，再开始消费栅栏之后的消息
+-- 1 参数列表
+-- 1.1 订单消息队列
+local streamKey = ARGV[1]
+-- 1.2 新的分区数
+local newPartitions = tonumber(ARGV[2])
+
+-- 2 数据key
+local partitionsKey = 'seckill:stream:partitions'
+local rebalanceKey = 'seckill:stream:rebalance'
+local retiredKey = 'seckill:stream:retired'
+
+local function partitionKey(partitions, p)
+    if (partitions > 1) then
+        return streamKey .. ':' .. p
+    end
+    return streamKey
+end
+
+-- 3 脚本业务
+-- 3.1 上一次调整还没有完成，返回-1
+if (redis.call('exists', rebalanceKey) == 1) then
+    return -1
+end
+local oldPartitions = tonumber(redis.call('get', partitionsKey) or '1')
+if (oldPartitions == newPartitions) then
+    return oldPartitions
+end
+-- 3.2 新分区的key
+local newKeys = {}
+for p = 0, newPartitions - 1 do
+    newKeys[partitionKey(newPartitions, p)] = true
+end
+-- 3.3 记录旧分区的栅栏，新分区中不存在的旧分区标记为退役，消费完之后删除
+for p = 0, oldPartitions - 1 do
+    local key = partitionKey(oldPartitions, p)
+    local last = redis.call('xrevrange', key, '+', '-', 'COUNT', 1)
+    if (#last > 0) then
+        redis.call('hset', rebalanceKey, key, last[1][1])
+    end
+    if (not newKeys[key]) then
+        redis.call('sadd', retiredKey, key)
+    end
+end
+-- 3.4 切换分区数
+redis.call('set', partitionsKey, newPartitions)
+return oldPartitions
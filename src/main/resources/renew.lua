@@ -0,0 +1,6 @@
+-- 续约 worker id：KEYS[1] id:worker:n，ARGV[1] 实例标识，ARGV[2] 有效期(毫秒)
+-- 租约还是自己的才续期
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
@@ -0,0 +1,36 @@
+-- 分桶的券，用户所在的桶没有库存时，到其他桶扣库存
+-- seckill.lua已经在用户所在的桶里占住了一人一单的记录，这里只扣库存、发送订单消息
+-- 1 参数列表
+-- 1.1 KEYS[1] 要扣库存的桶 seckill:stock:{优惠券id:桶号}
+local stockKey = KEYS[1]
+-- 1.2 KEYS[2] 订单队列分区数，KEYS[3] 订单消息队列，KEYS[4] 订单超时队列的时间格（为空表示不开启超时取消）
+local partitionsKey = KEYS[2]
+local streamKey = KEYS[3]
+local timeoutKey = KEYS[4]
+-- 1.3 优惠券id
+local voucherId = ARGV[1]
+-- 1.4 用户id
+local userId = ARGV[2]
+-- 1.5 订单id
+local orderId = ARGV[3]
+
+-- 2 订单队列分区，与seckill.lua一致
+local partitions = tonumber(redis.call('get', partitionsKey) or '1')
+if (partitions > 1) then
+    streamKey = streamKey .. ':' .. (tonumber(voucherId) % partitions)
+end
+
+-- 3 脚本业务
+-- 3.1 这个桶也没有库存，返回1
+if (tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    return 1
+end
+-- 3.2 扣库存
+redis.call('incrby', stockKey, -1)
+-- 3.3 发送消息到队列中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.4 加入超时队列
+if (timeoutKey and timeoutKey ~= '') then
+    redis.call('rpush', timeoutKey, orderId .. ':' .. voucherId .. ':' .. userId)
+end
+return 0
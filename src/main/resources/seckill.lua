@@ -4,37 +4,130 @@
 --- DateTime: 2022/11/4 16:49
 ---
 -- 1 参数列表
--- 1.1 优惠券id
+-- 1.1 KEYS[1] 用户所在的桶的库存key，KEYS[2] 同一个桶的订单key，由调用方按 userId % 桶数 选择，
+--     分桶时两个key带有同一个hash tag {优惠券id:桶号}，脚本不再访问其他桶
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+-- 1.2 KEYS[3] 订单队列分区数，KEYS[4] 订单消息队列，KEYS[5] 订单超时队列的时间格 seckill:timeout:到期秒数（为空表示不开启超时取消）
+local partitionsKey = KEYS[3]
+local streamKey = KEYS[4]
+local timeoutKey = KEYS[5]
+-- 1.3 优惠券id
 local voucherId = ARGV[1]
--- 1.2 用户id
+-- 1.4 用户id
 local userId = ARGV[2]
--- 1.3 订单id
+-- 1.5 订单id
 local orderId = ARGV[3]
+-- 1.6 是否已经从节点本地租约中拿到了库存，拿到了就不需要再判断和扣减redis库存
+local leased = ARGV[4] == '1'
+-- 1.7 当前时间（毫秒）
+local now = tonumber(ARGV[5])
+-- 1.8 秒杀时间窗口（毫秒），由调用方从本地预热的信息中传入，为空时不判断
+local beginTime = tonumber(ARGV[6])
+local endTime = tonumber(ARGV[7])
+-- 1.9 桶数和购买记录的存储方式
+local buckets = tonumber(ARGV[8])
+local membership = ARGV[9]
+
+-- 购买记录的存储方式，由 seckill:membership:优惠券id 选择，判断都是精确的
+--   set：SADD，默认
+--   bitmap：SETBIT userId 1，适合用户id连续、稠密的情况（用户id不能超过2^32 * 桶数）
+--   roaring：按 userId / 4096 分块，块内人少时用set保存低12位（intset，每人2字节），
+--            超过256人（set占用达到512字节）时转换为4096位的bitmap
+local function isMember(key, membership, userId)
+    if (membership == 'bitmap') then
+        return redis.call('getbit', key, userId) == 1
+    elseif (membership == 'roaring') then
+        local chunk = key .. ':r:' .. math.floor(userId / 4096)
+        local low = userId % 4096
+        local t = redis.call('type', chunk).ok
+        if (t == 'set') then
+            return redis.call('sismember', chunk, low) == 1
+        elseif (t == 'string') then
+            return redis.call('getbit', chunk, low) == 1
+        end
+        return false
+    end
+    return redis.call('sismember', key, userId) == 1
+end
+
+local function addMember(key, membership, userId)
+    if (membership == 'bitmap') then
+        redis.call('setbit', key, userId, 1)
+    elseif (membership == 'roaring') then
+        local chunk = key .. ':r:' .. math.floor(userId / 4096)
+        local low = userId % 4096
+        if (redis.call('type', chunk).ok == 'string') then
+            redis.call('setbit', chunk, low, 1)
+            return
+        end
+        redis.call('sadd', chunk, low)
+        -- 块内人数达到256，转换为bitmap
+        if (redis.call('scard', chunk) >= 256) then
+            local members = redis.call('smembers', chunk)
+            redis.call('del', chunk)
+            for _, m in ipairs(members) do
+                redis.call('setbit', chunk, tonumber(m), 1)
+            end
+        end
+    else
+        redis.call('sadd', key, userId)
+    end
+end
 
 -- 2 数据key
--- 2.1 库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2 订单key
-local orderKey = 'seckill:order:' .. voucherId
+-- 2.1 购买记录的存储方式，bitmap/roaring按数字保存；分桶时桶内用户id都是 home + k * 桶数，只保存k
+local member = userId
+if (membership ~= 'set') then
+    member = math.floor(tonumber(userId) / buckets)
+    if (membership == 'bitmap' and member >= 4294967296) then
+        return redis.error_reply('userId out of bitmap range')
+    end
+end
+-- 2.2 订单队列分区：按voucherId取模，同一个优惠券的订单始终进入同一个分区，保证有序
+--     只有一个分区时沿用 stream.orders，否则为 stream.orders:分区号
+local partitions = tonumber(redis.call('get', partitionsKey) or '1')
+if (partitions > 1) then
+    streamKey = streamKey .. ':' .. (tonumber(voucherId) % partitions)
+end
 
 -- 3 脚本业务
--- 3.1 判断库存是否充足
-if(tonumber(redis.call('get', stockKey))<=0) then
-    --3.2 库存不足，返回1
-    return 1
+-- 3.0 判断是否在秒杀时间内
+if (beginTime and now < beginTime) then
+    -- 尚未开始，返回3
+    return 3
 end
---3.2 判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember', orderKey , userId)== 1 ) then
-    --3.3 存在，说明是重复下单，返回2
+if (endTime and now > endTime) then
+    -- 已经结束，返回4
+    return 4
+end
+--3.1 判断用户是否下单 SISMEMBER orderKey userId
+if(isMember(orderKey, membership, member)) then
+    --3.2 存在，说明是重复下单，返回2
     return 2
 end
+-- 3.3 判断库存是否充足，租约模式下库存已经在本地扣过了
+if (not leased and tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    if (buckets > 1) then
+        -- 3.3.1 分桶：用户所在的桶没有库存，先占住一人一单的记录，返回5，由调用方到其他桶扣库存；
+        --       其他桶也没有库存时调用方用cancel.lua撤销
+        addMember(orderKey, membership, member)
+        return 5
+    end
+    --3.3.2 库存不足，返回1
+    return 1
+end
 -- 3.4 扣库存 incrby stockKey -1
-redis.call('incrby',stockKey,-1)
+if (not leased) then
+    redis.call('incrby',stockKey,-1)
+end
 -- 3.5 下单
-redis.call('sadd', orderKey , userId)
+addMember(orderKey, membership, member)
 -- 3.6 发送消息到队列中， XADD stream.orders *(id) k1 v1 k2 v2.....
-redis.call('xadd', 'stream.orders' , '*','userId',userId,'voucherId',voucherId,'userId',userId,'id',orderId)
+redis.call('xadd', streamKey , '*','userId',userId,'voucherId',voucherId,'userId',userId,'id',orderId)
+-- 3.7 加入超时队列 RPUSH seckill:timeout:到期秒数 订单id:优惠券id:用户id
+if (timeoutKey and timeoutKey ~= '') then
+    redis.call('rpush', timeoutKey, orderId .. ':' .. voucherId .. ':' .. userId)
+end
 
 return 0
-
-
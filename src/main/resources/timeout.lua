@@ -0,0 +1,23 @@
+-- 订单超时队列：每秒一个list（时间轮的一格），KEYS[1] 时间格 seckill:timeout:秒，KEYS[2] 游标 seckill:timeout:cursor
+-- 1 参数列表
+-- 1.1 操作 pop：取出一批到期的订单  advance：推进游标
+local op = ARGV[1]
+
+-- 2 脚本业务
+-- 2.1 取出最多n个 LRANGE + LTRIM，多个实例同时取也不会重复
+if (op == 'pop') then
+    local n = tonumber(ARGV[2])
+    local items = redis.call('lrange', KEYS[1], 0, n - 1)
+    if (#items > 0) then
+        redis.call('ltrim', KEYS[1], #items, -1)
+    end
+    return items
+end
+-- 2.2 游标只能前进，返回推进后的游标
+local cursor = tonumber(redis.call('get', KEYS[2]) or '0')
+local second = tonumber(ARGV[2])
+if (second > cursor) then
+    redis.call('set', KEYS[2], second)
+    cursor = second
+end
+return cursor
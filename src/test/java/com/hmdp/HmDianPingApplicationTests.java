@@ -4,7 +4,7 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IdGenerator;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -27,7 +27,7 @@ class HmDianPingApplicationTests {
     private CacheClient cacheClient;
 
     @Autowired
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
 
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
@@ -44,7 +44,7 @@ class HmDianPingApplicationTests {
 
         Runnable test = () ->{
           for(int i=0;i<100;i++){
-              long id = redisIdWorker.nextId("order");
+              long id = idGenerator.nextId("order");
               System.out.println("id= "+id);
           }
           countDownLatch.countDown();
@@ -0,0 +1,194 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀下单链路压测，作为下单链路改动的回归门禁
+ *
+ *  数据库使用H2（MySQL模式），redis在本地随机端口启动一个真实的redis-server进程，不依赖外部环境。
+ *  每个虚拟用户重复下单，检查：不超卖、不少卖、一人一单、redis/数据库库存一致，
+ *  并统计吞吐量、p50/p99/p999延迟、订单全部落库的耗时。
+ *
+ *  执行：mvn test -Ploadtest -Dloadtest.users=5000 -Dloadtest.stock=1000
+ *  参数：loadtest.users 虚拟用户数，loadtest.stock 库存，loadtest.attempts 每个用户的下单次数，
+ *       loadtest.threads 并发线程数，loadtest.drainTimeout 等待订单落库的最长秒数
+ */
+@SpringBootTest
+@ActiveProfiles("loadtest")
+@DirtiesContext
+class SeckillLoadHarness {
+
+    private static final int USERS = Integer.getInteger("loadtest.users", 2000);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 500);
+    private static final int ATTEMPTS = Integer.getInteger("loadtest.attempts", 2);
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 200);
+    private static final int DRAIN_TIMEOUT = Integer.getInteger("loadtest.drainTimeout", 60);
+
+    private static RedisServer redisServer;
+
+    @Autowired
+    private IVoucherService voucherService;
+
+    @Autowired
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Autowired
+    private IVoucherOrderService voucherOrderService;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 在spring容器创建之前启动redis，容器关闭之后由shutdown hook停止
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = RedisServer.newRedisServer()
+                .port(port)
+                .setting("bind 127.0.0.1")
+                .setting("save \"\"")
+                .setting("appendonly no")
+                .onShutdownForceStop(true)
+                .build();
+        redisServer.start();
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    @Test
+    void seckill() throws InterruptedException {
+        //1 创建秒杀券
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(200L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        Long voucherId = voucher.getId();
+
+        //2 虚拟用户并发下单，每个用户下单ATTEMPTS次
+        int total = USERS * ATTEMPTS;
+        long[] latencies = new long[total];
+        AtomicInteger index = new AtomicInteger();
+        AtomicLong success = new AtomicLong();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        Map<Long, AtomicInteger> successByUser = new ConcurrentHashMap<>();
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch latch = new CountDownLatch(total);
+        long begin = System.nanoTime();
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            for (long userId = 1; userId <= USERS; userId++) {
+                long uid = userId;
+                es.submit(() -> {
+                    UserDTO user = new UserDTO();
+                    user.setId(uid);
+                    UserHolder.saveUser(user);
+                    long start = System.nanoTime();
+                    try {
+                        Result result = voucherOrderService.seckillVoucher(voucherId);
+                        if (result.getSuccess()) {
+                            success.incrementAndGet();
+                            successByUser.computeIfAbsent(uid, k -> new AtomicInteger()).incrementAndGet();
+                        } else {
+                            failures.computeIfAbsent(result.getErrorMsg(), k -> new AtomicInteger()).incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failures.computeIfAbsent(e.getClass().getSimpleName(), k -> new AtomicInteger()).incrementAndGet();
+                    } finally {
+                        latencies[index.getAndIncrement()] = System.nanoTime() - start;
+                        UserHolder.removeUser();
+                        latch.countDown();
+                    }
+                });
+            }
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+
+        //3 等待消费者把订单全部落库、延迟扣减的库存全部写回数据库
+        long drainBegin = System.nanoTime();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(DRAIN_TIMEOUT);
+        long orders = 0;
+        int dbStock = -1;
+        while (System.currentTimeMillis() < deadline) {
+            orders = voucherOrderService.query().eq("voucher_id", voucherId).count();
+            dbStock = seckillVoucherService.getById(voucherId).getStock();
+            if (orders == success.get() && dbStock == STOCK - orders) {
+                break;
+            }
+            Thread.sleep(20);
+        }
+        long drain = System.nanoTime() - drainBegin;
+
+        //4 报告
+        Arrays.sort(latencies);
+        long distinctUsers = voucherOrderService.query().select("DISTINCT user_id")
+                .eq("voucher_id", voucherId).count();
+        String redisStock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+        System.out.println("========== 秒杀压测 ==========");
+        System.out.printf("用户=%d 库存=%d 每人下单=%d 并发线程=%d%n", USERS, STOCK, ATTEMPTS, THREADS);
+        System.out.printf("请求=%d 耗时=%dms 吞吐量=%.1f req/s%n",
+                total, TimeUnit.NANOSECONDS.toMillis(elapsed), total * 1e9 / elapsed);
+        System.out.printf("延迟 p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms%n",
+                percentile(latencies, 0.5), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[total - 1] / 1e6);
+        System.out.printf("成功=%d 失败=%s%n", success.get(), failures);
+        System.out.printf("落库订单=%d 下单用户=%d redis库存=%s 数据库库存=%d 落库耗时=%dms%n",
+                orders, distinctUsers, redisStock, dbStock, TimeUnit.NANOSECONDS.toMillis(drain));
+
+        //5 检查
+        assertTrue(success.get() <= STOCK, "超卖");
+        assertEquals(Math.min(STOCK, USERS), success.get(), "少卖");
+        assertTrue(successByUser.values().stream().allMatch(n -> n.get() == 1), "同一用户多次下单成功");
+        assertEquals(success.get(), orders, "订单没有全部落库");
+        assertEquals(orders, distinctUsers, "数据库中存在重复订单");
+        assertEquals(String.valueOf(STOCK - success.get()), redisStock, "redis库存不一致");
+        assertEquals(STOCK - orders, dbStock, "数据库库存不一致");
+    }
+
+    // 排好序的延迟，单位ms
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import lombok.Data;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCacheCodecTest {
+
+    private static BinaryCacheCodec codec(int compressThreshold) {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setCodecCompressThreshold(compressThreshold);
+        return new BinaryCacheCodec(cacheProperties);
+    }
+
+    private static Shop shop(long id) {
+        return new Shop()
+                .setId(id)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19, 123_000_000));
+    }
+
+    @Test
+    void roundTripShop() {
+        BinaryCacheCodec codec = codec(0);
+        Shop shop = shop(1L);
+
+        byte[] bytes = codec.encode(shop);
+
+        assertEquals(BinaryCacheCodec.VERSION, bytes[0]);
+        assertEquals(0, bytes[1]);
+        assertEquals(shop, codec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void roundTripShopWithNullFields() {
+        BinaryCacheCodec codec = codec(0);
+        Shop partial = new Shop().setId(2L).setName("😀 café").setScore(0);
+
+        assertEquals(partial, codec.decode(codec.encode(partial), Shop.class));
+        assertEquals(new Shop(), codec.decode(codec.encode(new Shop()), Shop.class));
+    }
+
+    @Test
+    void roundTripShopTypeList() {
+        BinaryCacheCodec codec = codec(0);
+        List<ShopType> types = new ArrayList<>();
+        types.add(new ShopType().setId(1L).setName("美食").setIcon("/types/ms.png").setSort(1));
+        types.add(null);
+        types.add(new ShopType().setId(2L).setName("KTV"));
+
+        byte[] bytes = codec.encodeList(types, ShopType.class);
+
+        assertEquals(types, codec.decodeList(bytes, ShopType.class));
+        assertTrue(codec.decodeList(codec.encodeList(new ArrayList<>(), ShopType.class), ShopType.class).isEmpty());
+    }
+
+    @Test
+    void compressAboveThreshold() {
+        BinaryCacheCodec codec = codec(1024);
+        List<Shop> shops = new ArrayList<>();
+        for (long i = 0; i < 50; i++) {
+            shops.add(shop(i));
+        }
+
+        byte[] bytes = codec.encodeList(shops, Shop.class);
+
+        assertEquals(1, bytes[1]);
+        assertTrue(bytes.length < codec(0).encodeList(shops, Shop.class).length);
+        assertEquals(shops, codec.decodeList(bytes, Shop.class));
+        //低于阈值不压缩
+        assertEquals(0, codec.encode(shop(1L))[1]);
+    }
+
+    @Test
+    void decodeWithLogicalExpirePrefix() {
+        BinaryCacheCodec codec = codec(0);
+        Shop shop = shop(3L);
+        byte[] bytes = codec.encode(shop);
+        byte[] value = ByteBuffer.allocate(CacheClient.EXPIRE_BYTES + bytes.length)
+                .putLong(System.currentTimeMillis())
+                .put(bytes)
+                .array();
+
+        assertEquals(shop, codec.decode(value, CacheClient.EXPIRE_BYTES, Shop.class));
+    }
+
+    @Test
+    void rejectFingerprintMismatch() {
+        BinaryCacheCodec codec = codec(0);
+        V1 v1 = new V1();
+        v1.setId(1L);
+        v1.setName("v1");
+
+        byte[] bytes = codec.encode(v1);
+
+        assertEquals(v1, codec.decode(bytes, V1.class));
+        assertThrows(SerializationException.class, () -> codec.decode(bytes, V2.class));
+        assertThrows(SerializationException.class, () -> codec.decodeList(codec.encodeList(Arrays.asList(v1), V1.class), V2.class));
+        //单个值和列表的指纹不同
+        assertThrows(SerializationException.class, () -> codec.decodeList(bytes, V1.class));
+    }
+
+    @Test
+    void rejectUnknownVersion() {
+        BinaryCacheCodec codec = codec(0);
+        byte[] bytes = codec.encode(shop(1L));
+        bytes[0] = (byte) (BinaryCacheCodec.VERSION + 1);
+
+        assertThrows(SerializationException.class, () -> codec.decode(bytes, Shop.class));
+        //旧的JSON值
+        assertThrows(SerializationException.class, () -> codec.decode("{\"id\":1}".getBytes(), Shop.class));
+        assertThrows(SerializationException.class, () -> codec.decode(new byte[0], Shop.class));
+    }
+
+    @Test
+    void rejectTruncatedInput() {
+        BinaryCacheCodec codec = codec(0);
+        byte[] bytes = codec.encode(shop(1L));
+        for (int length = 1; length < bytes.length; length++) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            assertThrows(SerializationException.class, () -> codec.decode(truncated, Shop.class));
+        }
+
+        BinaryCacheCodec compressing = codec(64);
+        byte[] compressed = compressing.encodeList(Arrays.asList(shop(1L), shop(2L)), Shop.class);
+        assertEquals(1, compressed[1]);
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length - 1);
+        assertThrows(SerializationException.class, () -> compressing.decodeList(truncated, Shop.class));
+    }
+
+    @Test
+    void rejectCorruptCompressedLength() {
+        BinaryCacheCodec codec = codec(0);
+        //原始长度varint为Long.MAX_VALUE，后面只有几个字节
+        byte[] bytes = {BinaryCacheCodec.VERSION, 1,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F,
+                0, 0, 0, 0};
+
+        assertThrows(SerializationException.class, () -> codec.decode(bytes, Shop.class));
+
+        //2GB以内但超过压缩比上限
+        byte[] large = {BinaryCacheCodec.VERSION, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 0, 0, 0, 0};
+        assertThrows(SerializationException.class, () -> codec.decode(large, Shop.class));
+    }
+
+    @Data
+    static class V1 {
+        private Long id;
+        private String name;
+    }
+
+    @Data
+    static class V2 {
+        private Long id;
+        private String name;
+        private Integer stock;
+    }
+}